@@ -0,0 +1,15 @@
+package com.distributedsystems.recommendationsystems.Abstractions;
+
+import com.distributedsystems.recommendationsystems.Models.CommunicationMessage;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+public interface IFrameTarget {
+    /**
+     * Gives the matrix that a slice belongs to, while its frame is read. The
+     * rows of the slice are handed over to that frame alone, it writes them
+     * @param header the header of the frame
+     * @param isX if the slice is of the X or the Y
+     * @return the matrix, or null to read the slice into a matrix of its own
+     */
+    INDArray GetTargetMatrix(CommunicationMessage header, boolean isX);
+}
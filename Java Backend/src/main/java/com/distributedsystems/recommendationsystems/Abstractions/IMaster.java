@@ -1,6 +1,7 @@
 package com.distributedsystems.recommendationsystems.Abstractions;
 
 import com.distributedsystems.recommendationsystems.Models.CommunicationMessage;
+import com.distributedsystems.recommendationsystems.Models.Interaction;
 import com.distributedsystems.recommendationsystems.Models.Poi;
 import org.nd4j.linalg.api.ndarray.INDArray;
 
@@ -12,10 +13,17 @@ public interface IMaster {
     void TransferMatricesToWorkers();
     void DistributeXMatrixToWorkers();
     void DistributeYMatrixToWorkers();
+    void DistributeRingIteration();
+
+    void DistributePipelinedIteration();
     HashMap<String, Integer[]> SplitMatrix(INDArray matrix, String matrixName);
     void SendBroadcastMessageToWorkers(CommunicationMessage message);
     double CalculateError();
     double CalculateScore(int x, int y);
     double CalculateDistance(double userLat, double userLon, double poiLat, double poiLon);
     List<Poi> CalculateBestLocalPOIsForUser(int user, int radius, double userLat, double userLng);
+    List<Poi> CalculateBestLocalPOIsForSession(List<Integer> sessionPois, int radius, double userLat, double userLng);
+    List<Poi> CalculatePopularLocalPOIs(int radius, double userLat, double userLng);
+    void BenchmarkSessionRecommendations(int sessions, int sessionLength);
+    void IngestInteractions(List<Interaction> interactions);
 }
@@ -5,11 +5,14 @@ import com.distributedsystems.recommendationsystems.Models.CommunicationMessage;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 public interface IServer {
     void OpenServer();
     void CloseServer();
-    void SendCommunicationMessage(CommunicationMessage message, String ip, int port);
+    boolean SendCommunicationMessage(CommunicationMessage message, String ip, int port);
+    long SendFrameMessage(CommunicationMessage message, String ip, int port);
+    long SendFrameMessage(CommunicationMessage message, ByteBuffer[] payloads, String ip, int port);
     void CloseConnections(ObjectInputStream in, ObjectOutputStream out);
     void CloseConnections(Socket socket, ObjectInputStream in, ObjectOutputStream out);
 }
@@ -4,11 +4,13 @@ import org.nd4j.linalg.api.ndarray.INDArray;
 
 public interface IWorker {
     void Initialize();
+    void Leave();
     INDArray CalculateCuMatrix(int x, INDArray matrix);
     INDArray CalculateCiMatrix(int x, INDArray matrix);
     INDArray PreCalculateYY(INDArray matrix);
     INDArray PreCalculateXX(INDArray matrix);
     INDArray CalculateDerivative(INDArray matrix, INDArray Pu, INDArray Cu, INDArray YY);
+    INDArray CalculateSparseDerivative(INDArray matrix, int[] interactions, double[] confidences, INDArray YY);
     void CalculateXDerivative(int startIndex, int endIndex);
     void CalculateYDerivative(int startIndex, int endIndex);
 }
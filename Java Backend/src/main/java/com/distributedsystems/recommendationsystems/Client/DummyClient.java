@@ -36,8 +36,9 @@ public class DummyClient extends Server implements IShowResults {
             System.out.println("Set the Port of the Master:");
             int masterPort = Integer.parseInt(in.readLine());
 
-            System.out.println("Enter the id of the user you want to get the POIs:");
-            int userID = Integer.parseInt(in.readLine());
+            System.out.println("Enter the id of the user you want to get the POIs (empty for a user that did not sign in):");
+            String userLine = in.readLine().trim();
+            Integer userID = userLine.isEmpty() ? null : Integer.parseInt(userLine);
 
             System.out.println("Enter number of POIs you want to get: ");
             int numOfPoi = Integer.parseInt(in.readLine());
@@ -1,5 +1,8 @@
 package com.distributedsystems.recommendationsystems.Client;
 
+import com.distributedsystems.recommendationsystems.Models.CommunicationMode;
+import com.distributedsystems.recommendationsystems.Models.FactorEncoding;
+import com.distributedsystems.recommendationsystems.Models.SchedulingMode;
 import com.distributedsystems.recommendationsystems.Utils.NetworkUtils;
 import com.distributedsystems.recommendationsystems.Server.Master;
 
@@ -29,7 +32,60 @@ public class MasterSpawner {
             System.out.println("Set the number of workers you want the master to wait:");
             int numOfWorkersToWait = Integer.parseInt(in.readLine());
 
-            new Master(name, ip, port, numOfWorkersToWait).Initialize();
+            System.out.println("Set the communication mode (0: Through Master, 1: Ring All-Gather, 2: Pipelined Chunks, " +
+                    "3: Bounded Staleness):");
+            CommunicationMode mode = CommunicationMode.values()[Integer.parseInt(in.readLine())];
+
+            int staleness = 0;
+            if (mode == CommunicationMode.BOUNDED_STALENESS) {
+                System.out.println("Set how many iterations a worker may run ahead of the slowest one:");
+                staleness = Integer.parseInt(in.readLine());
+            }
+
+            System.out.println("Set the scheduling of the rows (0: Static Ranges, 1: Work Queue):");
+            SchedulingMode scheduling = SchedulingMode.values()[Integer.parseInt(in.readLine())];
+
+            System.out.println("Set the factor encoding (0: Raw, 1: Float16, 2: Int8):");
+            FactorEncoding encoding = FactorEncoding.values()[Integer.parseInt(in.readLine())];
+
+            System.out.println("Set the minimum change of a factor row to be sent (0: Send every row):");
+            double deltaThreshold = Double.parseDouble(in.readLine());
+
+            System.out.println("Set the change under which a converged row is not solved again (0: Solve every row):");
+            double updateTolerance = Double.parseDouble(in.readLine());
+
+            System.out.println("Start from the factors of the previous training (0: No, 1: Yes):");
+            boolean isWarmStart = Integer.parseInt(in.readLine()) == 1;
+
+            System.out.println("Fold new check ins in the POI factors too (0: No, 1: Yes):");
+            boolean isFoldingInPois = Integer.parseInt(in.readLine()) == 1;
+
+            System.out.println("Set how many of the best POIs are kept for every user:");
+            int candidatesPerUser = Integer.parseInt(in.readLine());
+
+            System.out.println("Set the latency budget of a session recommendation in ms:");
+            double sessionLatencyBudget = Double.parseDouble(in.readLine());
+
+            System.out.println("Set how many sessions to benchmark after a training (0: No benchmark):");
+            int sessionBenchmarkSize = Integer.parseInt(in.readLine());
+
+            System.out.println("Set how many new check ins start a retrain (0: Never retrain):");
+            int retrainThreshold = Integer.parseInt(in.readLine());
+
+            Master master = new Master(name, ip, port, numOfWorkersToWait);
+            master.setCommunicationMode(mode);
+            master.setStaleness(staleness);
+            master.setSchedulingMode(scheduling);
+            master.setFactorEncoding(encoding);
+            master.setDeltaThreshold(deltaThreshold);
+            master.setUpdateTolerance(updateTolerance);
+            master.setWarmStart(isWarmStart);
+            master.setFoldingInPois(isFoldingInPois);
+            master.setCandidatesPerUser(candidatesPerUser);
+            master.setSessionLatencyBudget(sessionLatencyBudget);
+            master.setSessionBenchmarkSize(sessionBenchmarkSize);
+            master.setRetrainThreshold(retrainThreshold);
+            master.Initialize();
         } catch (IOException e) {
             e.printStackTrace();
         }
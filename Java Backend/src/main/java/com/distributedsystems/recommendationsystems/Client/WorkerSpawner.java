@@ -32,7 +32,11 @@ public class WorkerSpawner {
             System.out.println("Set the Port of the Master:");
             int masterPort = Integer.parseInt(in.readLine());
 
-            new Worker(name, ip, port, masterIP, masterPort).Initialize();
+            Worker worker = new Worker(name, ip, port, masterIP, masterPort);
+
+            /* Give the rows back to the master when the worker is stopped */
+            Runtime.getRuntime().addShutdownHook(new Thread(worker::Leave));
+            worker.Initialize();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -13,6 +13,17 @@ public class CommunicationMessage implements Serializable {
     private INDArray xArray;
     private INDArray yArray;
 
+    /* The gram (M.T * M) of the factor rows the message carries */
+    private INDArray xGramArray;
+    private INDArray yGramArray;
+
+    /* Encoded factors, they travel only inside binary frames */
+    private transient EncodedMatrix encodedXArray;
+    private transient EncodedMatrix encodedYArray;
+    private FactorEncoding factorEncoding;
+    private double deltaThreshold;
+
+    private int iteration;
     private int startIndex;
     private int endIndex;
 
@@ -22,16 +33,53 @@ public class CommunicationMessage implements Serializable {
     private int cpuCores;
     private int ramGBSize;
 
-    private double executionTime;
+    /* The calibration of a worker: its cost per second and its free memory */
+    private double calibratedThroughput;
+    private long freeHeapBytes;
+    private long freeOffHeapBytes;
 
-    private int userToAsk;
+    private double executionTime;
+    private double yExecutionTime;
+    private double partialError;
+
+    /* The bytes the frame of the message took, or the bytes a worker sent */
+    private transient long frameBytes;
+    private transient boolean assembledInPlace;
+    private long bytesOnWire;
+
+    /* Ring and pipelined modes: the rank of the worker and the ranges of every rank */
+    private List<String> ringAddresses;
+    private int workerRank;
+    private int[] xIndexes;
+    private int[] yIndexes;
+    private int chunkRows;
+    private double updateTolerance;
+
+    /* Null for a user that did not sign in */
+    private Integer userToAsk;
+
+    /* The POIs a user the model does not know visited lately, latest last */
+    private List<Integer> sessionPois;
     private int radiusInKm;
 
     private double userLat;
     private double userLng;
 
+    /* The categories to recommend, null for every category, and the POIs of a category at most, zero for no limit */
+    private List<Poi.POICategoryID> categories;
+    private int poisPerCategory;
+
     private List<Poi> poisToReturn;
 
+    /* The version of the model a recommendation was answered from, zero before the first model */
+    private long modelVersion;
+
+    /* If a recommendation is of the most visited POIs, since there is no model or the user is unknown */
+    private boolean fallback;
+
+    /* New check ins to fold in the trained model */
+    private List<Interaction> interactions;
+
     public CommunicationMessage() {}
 
     /**
@@ -77,6 +125,62 @@ public class CommunicationMessage implements Serializable {
         this.yArray = yArray;
     }
 
+    public EncodedMatrix getEncodedXArray() {
+        return encodedXArray;
+    }
+
+    public void setEncodedXArray(EncodedMatrix encodedXArray) {
+        this.encodedXArray = encodedXArray;
+    }
+
+    public INDArray getXGramArray() {
+        return xGramArray;
+    }
+
+    public void setXGramArray(INDArray xGramArray) {
+        this.xGramArray = xGramArray;
+    }
+
+    public INDArray getYGramArray() {
+        return yGramArray;
+    }
+
+    public void setYGramArray(INDArray yGramArray) {
+        this.yGramArray = yGramArray;
+    }
+
+    public EncodedMatrix getEncodedYArray() {
+        return encodedYArray;
+    }
+
+    public void setEncodedYArray(EncodedMatrix encodedYArray) {
+        this.encodedYArray = encodedYArray;
+    }
+
+    public FactorEncoding getFactorEncoding() {
+        return factorEncoding;
+    }
+
+    public void setFactorEncoding(FactorEncoding factorEncoding) {
+        this.factorEncoding = factorEncoding;
+    }
+
+    public double getDeltaThreshold() {
+        return deltaThreshold;
+    }
+
+    public void setDeltaThreshold(double deltaThreshold) {
+        this.deltaThreshold = deltaThreshold;
+    }
+
+    public int getIteration() {
+        return iteration;
+    }
+
+    public void setIteration(int iteration) {
+        this.iteration = iteration;
+    }
+
     public int getStartIndex() {
         return startIndex;
     }
@@ -133,6 +237,30 @@ public class CommunicationMessage implements Serializable {
         this.ramGBSize = ramGBSize;
     }
 
+    public double getCalibratedThroughput() {
+        return calibratedThroughput;
+    }
+
+    public void setCalibratedThroughput(double calibratedThroughput) {
+        this.calibratedThroughput = calibratedThroughput;
+    }
+
+    public long getFreeHeapBytes() {
+        return freeHeapBytes;
+    }
+
+    public void setFreeHeapBytes(long freeHeapBytes) {
+        this.freeHeapBytes = freeHeapBytes;
+    }
+
+    public long getFreeOffHeapBytes() {
+        return freeOffHeapBytes;
+    }
+
+    public void setFreeOffHeapBytes(long freeOffHeapBytes) {
+        this.freeOffHeapBytes = freeOffHeapBytes;
+    }
+
     public double getExecutionTime() {
         return executionTime;
     }
@@ -141,14 +269,142 @@ public class CommunicationMessage implements Serializable {
         this.executionTime = executionTime;
     }
 
-    public int getUserToAsk() {
+    public double getYExecutionTime() {
+        return yExecutionTime;
+    }
+
+    public void setYExecutionTime(double yExecutionTime) {
+        this.yExecutionTime = yExecutionTime;
+    }
+
+    public double getPartialError() {
+        return partialError;
+    }
+
+    public void setPartialError(double partialError) {
+        this.partialError = partialError;
+    }
+
+    public long getFrameBytes() {
+        return frameBytes;
+    }
+
+    public void setFrameBytes(long frameBytes) {
+        this.frameBytes = frameBytes;
+    }
+
+    public boolean isAssembledInPlace() {
+        return assembledInPlace;
+    }
+
+    public void setAssembledInPlace(boolean assembledInPlace) {
+        this.assembledInPlace = assembledInPlace;
+    }
+
+    public long getBytesOnWire() {
+        return bytesOnWire;
+    }
+
+    public void setBytesOnWire(long bytesOnWire) {
+        this.bytesOnWire = bytesOnWire;
+    }
+
+    public List<String> getRingAddresses() {
+        return ringAddresses;
+    }
+
+    public void setRingAddresses(List<String> ringAddresses) {
+        this.ringAddresses = ringAddresses;
+    }
+
+    public int getWorkerRank() {
+        return workerRank;
+    }
+
+    public void setWorkerRank(int workerRank) {
+        this.workerRank = workerRank;
+    }
+
+    public int getChunkRows() {
+        return chunkRows;
+    }
+
+    public void setChunkRows(int chunkRows) {
+        this.chunkRows = chunkRows;
+    }
+
+    public double getUpdateTolerance() {
+        return updateTolerance;
+    }
+
+    public void setUpdateTolerance(double updateTolerance) {
+        this.updateTolerance = updateTolerance;
+    }
+
+    public int[] getXIndexes() {
+        return xIndexes;
+    }
+
+    public void setXIndexes(int[] xIndexes) {
+        this.xIndexes = xIndexes;
+    }
+
+    public int[] getYIndexes() {
+        return yIndexes;
+    }
+
+    public void setYIndexes(int[] yIndexes) {
+        this.yIndexes = yIndexes;
+    }
+
+    public Integer getUserToAsk() {
         return userToAsk;
     }
 
-    public void setUserToAsk(int userToAsk) {
+    public void setUserToAsk(Integer userToAsk) {
         this.userToAsk = userToAsk;
     }
 
+    public long getModelVersion() {
+        return modelVersion;
+    }
+
+    public void setModelVersion(long modelVersion) {
+        this.modelVersion = modelVersion;
+    }
+
+    public List<Poi.POICategoryID> getCategories() {
+        return categories;
+    }
+
+    public void setCategories(List<Poi.POICategoryID> categories) {
+        this.categories = categories;
+    }
+
+    public int getPoisPerCategory() {
+        return poisPerCategory;
+    }
+
+    public void setPoisPerCategory(int poisPerCategory) {
+        this.poisPerCategory = poisPerCategory;
+    }
+
+    public boolean isFallback() {
+        return fallback;
+    }
+
+    public void setFallback(boolean fallback) {
+        this.fallback = fallback;
+    }
+
+    public List<Integer> getSessionPois() {
+        return sessionPois;
+    }
+
+    public void setSessionPois(List<Integer> sessionPois) {
+        this.sessionPois = sessionPois;
+    }
+
     public int getRadiusInKm() {
         return radiusInKm;
     }
@@ -180,4 +436,12 @@ public class CommunicationMessage implements Serializable {
     public void setPoisToReturn(List<Poi> poisToReturn) {
         this.poisToReturn = poisToReturn;
     }
+
+    public List<Interaction> getInteractions() {
+        return interactions;
+    }
+
+    public void setInteractions(List<Interaction> interactions) {
+        this.interactions = interactions;
+    }
 }
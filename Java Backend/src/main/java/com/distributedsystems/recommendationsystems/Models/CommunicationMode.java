@@ -0,0 +1,15 @@
+package com.distributedsystems.recommendationsystems.Models;
+
+public enum CommunicationMode {
+    /* Every slice goes through the master, which stacks and redistributes the matrices */
+    MASTER,
+
+    /* The workers exchange their slices directly with a ring all-gather */
+    RING,
+
+    /* The workers stream their rows in chunks, which the master forwards as they arrive */
+    PIPELINED,
+
+    /* Every worker runs its own iterations against factors at most S iterations old */
+    BOUNDED_STALENESS
+}
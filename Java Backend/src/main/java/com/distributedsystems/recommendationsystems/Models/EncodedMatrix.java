@@ -0,0 +1,35 @@
+package com.distributedsystems.recommendationsystems.Models;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A factor matrix encoded by the FactorCodec. The payload is opaque
+ * to the transport, it can only be decoded against the reference
+ * matrix the receiver already holds.
+ */
+public class EncodedMatrix {
+    private final int rows;
+    private final int columns;
+    private final ByteBuffer payload;
+
+    public EncodedMatrix(int rows, int columns, ByteBuffer payload) {
+        this.rows = rows;
+        this.columns = columns;
+        this.payload = payload;
+    }
+
+    /**
+     * Getters
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public ByteBuffer getPayload() {
+        return payload;
+    }
+}
@@ -0,0 +1,12 @@
+package com.distributedsystems.recommendationsystems.Models;
+
+public enum FactorEncoding {
+    /* The values as they are stored */
+    RAW,
+
+    /* Half precision floats */
+    FLOAT16,
+
+    /* 8 bit integers with one scale per row */
+    INT8
+}
@@ -0,0 +1,54 @@
+package com.distributedsystems.recommendationsystems.Models;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.io.Serializable;
+
+/**
+ * New check ins of a user to a POI
+ */
+public class Interaction implements Serializable {
+    @SerializedName("user")
+    private int user;
+
+    @SerializedName("poi")
+    private int poi;
+
+    @SerializedName("count")
+    private int count;
+
+    public Interaction() {}
+
+    public Interaction(int user, int poi, int count) {
+        this.user = user;
+        this.poi = poi;
+        this.count = count;
+    }
+
+    /**
+     * Getters and Setters
+     */
+    public int getUser() {
+        return user;
+    }
+
+    public void setUser(int user) {
+        this.user = user;
+    }
+
+    public int getPoi() {
+        return poi;
+    }
+
+    public void setPoi(int poi) {
+        this.poi = poi;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+}
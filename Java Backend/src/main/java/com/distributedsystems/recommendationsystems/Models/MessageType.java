@@ -2,6 +2,8 @@ package com.distributedsystems.recommendationsystems.Models;
 
 import com.google.gson.annotations.SerializedName;
 
+import java.io.IOException;
+
 public enum MessageType {
 
     @SerializedName("0")
@@ -19,7 +21,29 @@ public enum MessageType {
     @SerializedName("6")
     ASK_RECOMMENDATION (6),
     @SerializedName("7")
-    REPLY_RECOMMENDATION (7);
+    REPLY_RECOMMENDATION (7),
+    @SerializedName("8")
+    RING_SLICE (8),
+    @SerializedName("9")
+    ITERATION_CALCULATED (9),
+    @SerializedName("10")
+    ASK_FACTORS (10),
+    @SerializedName("11")
+    FACTORS_CALCULATED (11),
+    @SerializedName("12")
+    X_CHUNK (12),
+    @SerializedName("13")
+    Y_CHUNK (13),
+    @SerializedName("14")
+    HEARTBEAT (14),
+    @SerializedName("15")
+    LEAVE (15),
+    @SerializedName("16")
+    RESET (16),
+    @SerializedName("17")
+    INGEST_INTERACTIONS (17),
+    @SerializedName("18")
+    INTERACTIONS_INGESTED (18);
 
     private final int value;
     public int getValue() {
@@ -29,4 +53,11 @@ public enum MessageType {
     MessageType(int value) {
         this.value = value;
     }
+
+    public static MessageType forValue(int value) throws IOException {
+        for (MessageType type : values()) {
+            if (type.value == value) return type;
+        }
+        throw new IOException("Unknown message type: " + value);
+    }
 }
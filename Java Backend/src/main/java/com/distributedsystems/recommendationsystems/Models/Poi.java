@@ -111,6 +111,14 @@ public class Poi implements Serializable {
         this.distance = distance;
     }
 
+    public String getPhoto() {
+        return photo;
+    }
+
+    public void setPhoto(String photo) {
+        this.photo = photo;
+    }
+
     public POICategoryID getCategory() {
         return category;
     }
@@ -0,0 +1,9 @@
+package com.distributedsystems.recommendationsystems.Models;
+
+public enum SchedulingMode {
+    /* One range per worker and half step, split by the previous execution times */
+    STATIC,
+
+    /* Many small chunks per half step, pulled by the workers as they get idle */
+    WORK_QUEUE
+}
@@ -0,0 +1,314 @@
+package com.distributedsystems.recommendationsystems.Server;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * The best POIs of every user that the user did not visit, by score,
+ * calculated once per model so that a request does not rank the whole
+ * catalog. The lists of all the users are kept in flat arrays, the list
+ * of a user runs from its offset to the offset of the next user, best first
+ */
+class CandidateLists {
+    private final int[] offsets;
+    private final int[] pois;
+    private final float[] scores;
+
+    private CandidateLists(int[] offsets, int[] pois, float[] scores) {
+        this.offsets = offsets;
+        this.pois = pois;
+        this.scores = scores;
+    }
+
+    /**
+     * Selects the candidates of some users again, from one or more sets of
+     * POIs, like the whole catalog and every category. The users are split
+     * between the cores, the scores of a user are read once for all the sets.
+     * The rest move the POIs whose scores changed in their previous lists,
+     * and the lists they do not change are copied. Users that the previous
+     * lists of a set do not have are selected whether given or not
+     * @param previous the previous lists of every set, null where there are none
+     * @param scores the scores of every user for every POI
+     * @param visited the POIs every user visited
+     * @param users the users to select again, in ascending order
+     * @param changedPois the POIs whose scores changed for every user, in ascending order
+     * @param candidates the candidates of a user
+     * @param catalogPois the POIs of every set, in ascending order, null for every POI
+     * @return the new lists of every set
+     */
+    static CandidateLists[] Update(CandidateLists[] previous, INDArray scores, VisitedSets visited,
+                                   int[] users, int[] changedPois, int candidates, int[][] catalogPois) {
+        int userCount = scores.rows();
+        int sets = catalogPois.length;
+
+        /* The users to select in every set: the given ones and the ones its previous lists do not have */
+        boolean[][] isSelected = new boolean[sets][userCount];
+        for (int set = 0; set < sets; set++) {
+            int previousUsers = previous[set] == null ? 0 : previous[set].getUsers();
+            for (int user : users) {
+                if (user < previousUsers) isSelected[set][user] = true;
+            }
+            Arrays.fill(isSelected[set], previousUsers, userCount, true);
+        }
+
+        /* The new scores of the changed POIs, by user */
+        double[][] changedScores = new double[changedPois.length][];
+        for (int i = 0; i < changedPois.length; i++) {
+            changedScores[i] = scores.getColumn(changedPois[i]).dup().data().asDouble();
+        }
+
+        /* A user that is not selected moves the changed POIs of a set in its list, unless that leaves the list short */
+        int[][][] selectedPois = new int[sets][userCount][];
+        float[][][] selectedScores = new float[sets][userCount][];
+        for (int set = 0; set < sets; set++) {
+            if (previous[set] == null) continue;
+
+            int[] setPois = catalogPois[set];
+            int[] setChanged = IntStream.range(0, changedPois.length)
+                    .filter(i -> setPois == null || Arrays.binarySearch(setPois, changedPois[i]) >= 0)
+                    .toArray();
+            if (setChanged.length == 0) continue;
+
+            int[] setChangedPois = Arrays.stream(setChanged).map(i -> changedPois[i]).toArray();
+            double[][] setChangedScores = Arrays.stream(setChanged).mapToObj(i -> changedScores[i]).toArray(double[][]::new);
+            for (int user = 0; user < previous[set].getUsers(); user++) {
+                if (isSelected[set][user]) continue;
+
+                isSelected[set][user] = !previous[set].MovePois(user, setChangedPois, setChangedScores, visited,
+                        candidates, selectedPois[set], selectedScores[set]);
+            }
+        }
+
+        int[] selectedUsers = IntStream.range(0, userCount)
+                .filter(user -> IntStream.range(0, sets).anyMatch(set -> isSelected[set][user]))
+                .toArray();
+
+        IntStream.range(0, selectedUsers.length).parallel().forEach(index -> {
+            int user = selectedUsers[index];
+            double[] userScores = scores.getRow(user).dup().data().asDouble();
+            int[] userVisits = visited.GetPois(user);
+
+            for (int set = 0; set < sets; set++) {
+                if (!isSelected[set][user]) continue;
+
+                /* The scores of the POIs of the set only */
+                int[] setPois = catalogPois[set];
+                double[] setScores = userScores;
+                if (setPois != null) {
+                    setScores = new double[setPois.length];
+                    for (int i = 0; i < setPois.length; i++) setScores[i] = userScores[setPois[i]];
+                }
+
+                int[] userPois = new int[Math.min(candidates, setScores.length)];
+                float[] userCandidateScores = new float[userPois.length];
+                int count = SelectTop(setScores, setPois, userVisits, userPois, userCandidateScores);
+
+                selectedPois[set][user] = Arrays.copyOf(userPois, count);
+                selectedScores[set][user] = Arrays.copyOf(userCandidateScores, count);
+            }
+        });
+
+        CandidateLists[] lists = new CandidateLists[sets];
+        for (int set = 0; set < sets; set++) {
+            lists[set] = Assemble(previous[set], selectedPois[set], selectedScores[set]);
+        }
+        return lists;
+    }
+
+    /**
+     * Moves the changed POIs in the list of a user by their new scores,
+     * without reading the rest of the scores of the user. They are taken
+     * out of the list and put back when they are not below its last score,
+     * since every POI out of a full list scores below it. A full list that
+     * gets shorter may miss a POI out of it, only a selection can fill it
+     * @param user the user
+     * @param changedPois the changed POIs, in ascending order
+     * @param changedScores the new scores of every changed POI, by user
+     * @param visited the POIs every user visited
+     * @param candidates the candidates of a full list
+     * @param movedPois the new list of every user, where the list of the user is put
+     * @param movedScores the scores of the new lists
+     * @return false if the user must be selected again
+     */
+    private boolean MovePois(int user, int[] changedPois, double[][] changedScores, VisitedSets visited,
+                             int candidates, int[][] movedPois, float[][] movedScores) {
+        int start = getStart(user);
+        int end = getEnd(user);
+        boolean isFull = end - start >= candidates;
+        float last = end > start ? scores[end - 1] : Float.NEGATIVE_INFINITY;
+
+        int[] userPois = new int[end - start + changedPois.length];
+        float[] userScores = new float[userPois.length];
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (Arrays.binarySearch(changedPois, pois[i]) >= 0) continue;
+
+            userPois[count] = pois[i];
+            userScores[count++] = scores[i];
+        }
+
+        /* The changed POIs are few, each is inserted in its place */
+        for (int i = 0; i < changedPois.length; i++) {
+            int poi = changedPois[i];
+            float score = (float) changedScores[i][user];
+            if ((isFull && score < last) || visited.Contains(user, poi)) continue;
+
+            int place = count++;
+            while (place > 0 && (score > userScores[place - 1] ||
+                    (score == userScores[place - 1] && poi < userPois[place - 1]))) {
+                userPois[place] = userPois[place - 1];
+                userScores[place] = userScores[place - 1];
+                place--;
+            }
+            userPois[place] = poi;
+            userScores[place] = score;
+        }
+
+        if (isFull && count < candidates) return false;
+
+        count = Math.min(count, candidates);
+        movedPois[user] = Arrays.copyOf(userPois, count);
+        movedScores[user] = Arrays.copyOf(userScores, count);
+        return true;
+    }
+
+    /**
+     * Puts the lists of every user, in order, into the flat arrays
+     * @param previous the previous lists, for the users that were not selected
+     * @param selectedPois the selected POIs of every user, null where it was not selected
+     * @param selectedScores the scores of the selected POIs
+     * @return the lists
+     */
+    private static CandidateLists Assemble(CandidateLists previous, int[][] selectedPois, float[][] selectedScores) {
+        int userCount = selectedPois.length;
+
+        int[] offsets = new int[userCount + 1];
+        for (int user = 0; user < userCount; user++) {
+            int length = selectedPois[user] != null ? selectedPois[user].length : previous.getEnd(user) - previous.getStart(user);
+            offsets[user + 1] = offsets[user] + length;
+        }
+
+        int[] pois = new int[offsets[userCount]];
+        float[] candidateScores = new float[offsets[userCount]];
+        for (int user = 0; user < userCount; user++) {
+            if (selectedPois[user] != null) {
+                System.arraycopy(selectedPois[user], 0, pois, offsets[user], selectedPois[user].length);
+                System.arraycopy(selectedScores[user], 0, candidateScores, offsets[user], selectedScores[user].length);
+            } else {
+                System.arraycopy(previous.pois, previous.getStart(user), pois, offsets[user], offsets[user + 1] - offsets[user]);
+                System.arraycopy(previous.scores, previous.getStart(user), candidateScores, offsets[user], offsets[user + 1] - offsets[user]);
+            }
+        }
+
+        return new CandidateLists(offsets, pois, candidateScores);
+    }
+
+    /**
+     * Selects the POIs of the highest scores that are not visited, through
+     * a min heap of the best so far, so the catalog is read once. The visited
+     * POIs are sorted, they are passed over in step with the catalog
+     * @param scores the scores of the POIs
+     * @param visited the visited POIs, in ascending order
+     * @param pois the selected POIs, best first, its length is how many to select
+     * @param selectedScores the scores of the selected POIs
+     * @return the number of the selected POIs, fewer when there are not enough unvisited ones
+     */
+    static int SelectTop(double[] scores, int[] visited, int[] pois, float[] selectedScores) {
+        return SelectTop(scores, null, visited, pois, selectedScores);
+    }
+
+    /**
+     * Selects like the above from some of the POIs, a score is of the POI
+     * in the same place of the POIs to select from
+     * @param catalogPois the POIs to select from, in ascending order, null for every POI
+     */
+    static int SelectTop(double[] scores, int[] catalogPois, int[] visited, int[] pois, float[] selectedScores) {
+        int capacity = pois.length;
+        int size = 0;
+        int nextVisited = 0;
+
+        /* The heap keeps the places of the scores, the POIs are ascending so the lower place is the lower POI */
+        for (int place = 0; place < scores.length; place++) {
+            int poi = catalogPois == null ? place : catalogPois[place];
+            while (nextVisited < visited.length && visited[nextVisited] < poi) nextVisited++;
+            if (nextVisited < visited.length && visited[nextVisited] == poi) continue;
+
+            if (size < capacity) {
+                pois[size] = place;
+                SiftUp(scores, pois, size++);
+            } else if (capacity > 0 && IsBetter(scores, place, pois[0])) {
+                pois[0] = place;
+                SiftDown(scores, pois, size);
+            }
+        }
+
+        /* Emptying the min heap gives the worst first, so it fills from the end */
+        for (int last = size - 1; last > 0; last--) {
+            int worst = pois[0];
+            pois[0] = pois[last];
+            pois[last] = worst;
+            SiftDown(scores, pois, last);
+        }
+
+        for (int i = 0; i < size; i++) {
+            selectedScores[i] = (float) scores[pois[i]];
+            if (catalogPois != null) pois[i] = catalogPois[pois[i]];
+        }
+        return size;
+    }
+
+    /* The higher score is better, and on the same score the lower POI */
+    private static boolean IsBetter(double[] scores, int poi, int otherPoi) {
+        return scores[poi] > scores[otherPoi] || (scores[poi] == scores[otherPoi] && poi < otherPoi);
+    }
+
+    private static void SiftUp(double[] scores, int[] heap, int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!IsBetter(scores, heap[parent], heap[index])) break;
+
+            int swap = heap[parent];
+            heap[parent] = heap[index];
+            heap[index] = swap;
+            index = parent;
+        }
+    }
+
+    private static void SiftDown(double[] scores, int[] heap, int size) {
+        int index = 0;
+        while (true) {
+            int worst = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && IsBetter(scores, heap[worst], heap[left])) worst = left;
+            if (right < size && IsBetter(scores, heap[worst], heap[right])) worst = right;
+            if (worst == index) return;
+
+            int swap = heap[worst];
+            heap[worst] = heap[index];
+            heap[index] = swap;
+            index = worst;
+        }
+    }
+
+    int getUsers() {
+        return offsets.length - 1;
+    }
+
+    private int getStart(int user) {
+        return offsets[user];
+    }
+
+    private int getEnd(int user) {
+        return offsets[user + 1];
+    }
+
+    /**
+     * @return the candidates of the user, best first
+     */
+    int[] GetPois(int user) {
+        return Arrays.copyOfRange(pois, offsets[user], offsets[user + 1]);
+    }
+}
@@ -0,0 +1,41 @@
+package com.distributedsystems.recommendationsystems.Server;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * The POIs of a category in a version of the model: their columns, the
+ * best of them for every user and their rows of Y, so that a request
+ * filtered by the category ranks only them. Like the model it never
+ * changes once published
+ */
+class CategoryIndex {
+    private final int[] pois;
+    private final CandidateLists candidates;
+    private final INDArray Y;
+
+    /**
+     * @param pois the POIs of the category, in ascending order
+     * @param candidates the best unvisited POIs of the category of every user
+     * @param Y the rows of Y of the POIs, in the order of the POIs
+     */
+    CategoryIndex(int[] pois, CandidateLists candidates, INDArray Y) {
+        this.pois = pois;
+        this.candidates = candidates;
+        this.Y = Y;
+    }
+
+    /**
+     * @return the POIs of the category, in ascending order
+     */
+    int[] getPois() {
+        return pois;
+    }
+
+    CandidateLists getCandidates() {
+        return candidates;
+    }
+
+    INDArray getY() {
+        return Y;
+    }
+}
@@ -0,0 +1,129 @@
+package com.distributedsystems.recommendationsystems.Server;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Work queue of a half step. The rows are cut into small chunks that
+ * the workers pull one at a time, so a fast worker simply calculates
+ * more chunks than a slow one. Once the queue is empty, the idle workers
+ * take over the chunks that run much longer than the average chunk; the
+ * first result of a chunk wins and the rest are ignored by the assembly.
+ */
+class ChunkScheduler {
+    /* A chunk runs too long when it takes this many times the average chunk */
+    private final static double STALL_FACTOR = 3;
+
+    /* A chunk that is being calculated */
+    private static class Assignment {
+        private final String workerName;
+        private final int[] chunk;
+        private final long startTime;
+
+        private Assignment(String workerName, int[] chunk) {
+            this.workerName = workerName;
+            this.chunk = chunk;
+            this.startTime = System.nanoTime();
+        }
+    }
+
+    private final int iteration;
+    private final Deque<int[]> pendingChunks = new ArrayDeque<>();
+    private final Map<Integer, Assignment> runningChunks = new HashMap<>();
+    private final Deque<String> idleWorkers = new ArrayDeque<>();
+
+    private long finishedChunksTime;
+    private int finishedChunks;
+
+    ChunkScheduler(int iteration, int rows, int chunkRows) {
+        this.iteration = iteration;
+        for (int startIndex = 0; startIndex < rows; startIndex += chunkRows) {
+            pendingChunks.add(new int[]{startIndex, Math.min(startIndex + chunkRows, rows) - 1});
+        }
+    }
+
+    /**
+     * Gives the next chunk to a worker that got idle
+     * @param workerName the name of the worker
+     * @return the start and end index of the chunk, or null if the worker should wait
+     */
+    synchronized int[] NextChunk(String workerName) {
+        int[] chunk = pendingChunks.poll();
+        if (chunk == null) {
+            chunk = TakeStalledChunk(workerName);
+        }
+
+        if (chunk == null) {
+            if (!idleWorkers.contains(workerName)) idleWorkers.add(workerName);
+            return null;
+        }
+
+        runningChunks.put(chunk[0], new Assignment(workerName, chunk));
+        return chunk;
+    }
+
+    /**
+     * Marks a chunk as calculated
+     * @param startIndex the start index of the chunk
+     */
+    synchronized void ChunkFinished(int startIndex) {
+        Assignment assignment = runningChunks.remove(startIndex);
+        if (assignment == null) return;
+
+        finishedChunksTime += System.nanoTime() - assignment.startTime;
+        finishedChunks++;
+    }
+
+    /**
+     * Gives the chunks that run too long to the idle workers
+     * @return the name of each idle worker that got a chunk, with its chunk
+     */
+    synchronized List<Map.Entry<String, int[]>> ReassignStalledChunks() {
+        List<Map.Entry<String, int[]>> reassignments = new ArrayList<>();
+
+        while (!idleWorkers.isEmpty()) {
+            String workerName = idleWorkers.peek();
+            int[] chunk = TakeStalledChunk(workerName);
+            if (chunk == null) break;
+
+            idleWorkers.poll();
+            runningChunks.put(chunk[0], new Assignment(workerName, chunk));
+            reassignments.add(new AbstractMap.SimpleEntry<>(workerName, chunk));
+        }
+
+        return reassignments;
+    }
+
+    int getIteration() {
+        return iteration;
+    }
+
+    /**
+     * Finds the chunk that runs the longest, if it runs too long
+     * @param workerName the worker that would take it over
+     * @return the chunk, or null if no chunk is stalled
+     */
+    private int[] TakeStalledChunk(String workerName) {
+        if (finishedChunks == 0) return null;
+
+        long now = System.nanoTime();
+        double stallTime = STALL_FACTOR * finishedChunksTime / finishedChunks;
+
+        Assignment oldest = null;
+        for (Assignment assignment : runningChunks.values()) {
+            if (assignment.workerName.equals(workerName)) continue;
+            if (oldest == null || assignment.startTime < oldest.startTime) oldest = assignment;
+        }
+
+        if (oldest == null || now - oldest.startTime < stallTime) return null;
+
+        System.out.println("Reassigning the chunk from " + oldest.chunk[0] + " to " + oldest.chunk[1] +
+                " of " + oldest.workerName + " to " + workerName);
+        return oldest.chunk;
+    }
+}
@@ -0,0 +1,136 @@
+package com.distributedsystems.recommendationsystems.Server;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.util.BitSet;
+
+/**
+ * A factor matrix of a half step, allocated before the first slice
+ * arrives. Every slice is written to its own rows as soon as it lands
+ * and the received rows are tracked, so the matrix is ready the moment
+ * the last slice is written, without any stacking. Optionally the gram
+ * matrix (M.T * M) is summed from the grams the senders calculated for
+ * their own slices, so nobody recalculates it over the whole matrix.
+ */
+class FactorAssembly {
+    private final int iteration;
+    private final INDArray matrix;
+    private final INDArray gram;
+    private volatile boolean isGramValid = true;
+    private boolean isAborted;
+    private final BitSet receivedRows;
+    private final BitSet claimedRows;
+
+    FactorAssembly(int iteration, int rows, int columns) {
+        this(iteration, rows, columns, false);
+    }
+
+    FactorAssembly(int iteration, int rows, int columns, boolean isGramAccumulated) {
+        this.iteration = iteration;
+        this.matrix = Nd4j.create(rows, columns, 'c');
+        this.gram = isGramAccumulated ? Nd4j.zeros(columns, columns) : null;
+        this.receivedRows = new BitSet(rows);
+        this.claimedRows = new BitSet(rows);
+    }
+
+    /**
+     * Claims the rows of a slice for the first result that carries them, a
+     * slice calculated twice must be put and added to the gram only once
+     * @return false if any of the rows was already claimed
+     */
+    synchronized boolean Claim(int startIndex, int endIndex) {
+        if (IsClaimed(startIndex, endIndex)) return false;
+
+        claimedRows.set(startIndex, endIndex + 1);
+        return true;
+    }
+
+    /**
+     * Copies a slice that could not be read in place
+     * @param startIndex the first row of the slice
+     * @param rows the rows of the slice
+     */
+    void PutRows(int startIndex, INDArray rows) {
+        matrix.put(new INDArrayIndex[]{
+                NDArrayIndex.interval(startIndex, startIndex + rows.rows()),
+                NDArrayIndex.all()}, rows);
+    }
+
+    /**
+     * Adds the gram of a slice to the gram of the matrix
+     * @param sliceGram the gram of the slice, or null if it is unknown,
+     *                  which leaves the matrix without a gram
+     */
+    void AddGram(INDArray sliceGram) {
+        if (gram == null) return;
+
+        synchronized (gram) {
+            if (sliceGram == null) {
+                isGramValid = false;
+            } else {
+                gram.addi(sliceGram);
+            }
+        }
+    }
+
+    /**
+     * Marks the rows of a slice as received
+     * @return true only for the slice that completes the matrix
+     */
+    synchronized boolean MarkReceived(int startIndex, int endIndex) {
+        boolean wasComplete = IsComplete();
+        receivedRows.set(startIndex, endIndex + 1);
+
+        if (!wasComplete && IsComplete()) {
+            notifyAll();
+            return true;
+        }
+        return false;
+    }
+
+    synchronized boolean IsClaimed(int startIndex, int endIndex) {
+        return !claimedRows.get(startIndex, endIndex + 1).isEmpty();
+    }
+
+    synchronized boolean IsReceived(int startIndex, int endIndex) {
+        return receivedRows.get(startIndex, endIndex + 1).cardinality() == endIndex - startIndex + 1;
+    }
+
+    synchronized boolean IsComplete() {
+        return receivedRows.cardinality() == matrix.rows();
+    }
+
+    /**
+     * Waits until every row is received
+     * @return false if the assembly was aborted meanwhile
+     */
+    synchronized boolean AwaitComplete() throws InterruptedException {
+        while (!IsComplete() && !isAborted) {
+            wait();
+        }
+        return !isAborted;
+    }
+
+    /**
+     * Releases the waiters of an iteration that will never complete
+     */
+    synchronized void Abort() {
+        isAborted = true;
+        notifyAll();
+    }
+
+    int getIteration() {
+        return iteration;
+    }
+
+    INDArray getMatrix() {
+        return matrix;
+    }
+
+    INDArray getGram() {
+        return isGramValid ? gram : null;
+    }
+}
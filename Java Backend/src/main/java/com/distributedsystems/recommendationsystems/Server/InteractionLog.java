@@ -0,0 +1,210 @@
+package com.distributedsystems.recommendationsystems.Server;
+
+import com.distributedsystems.recommendationsystems.Models.Interaction;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The append only log of the check ins that arrived after the dataset was
+ * written. The check ins are appended to segment files of fixed size records,
+ * the latest segment is the active one, the rest are sealed and wait to be
+ * compacted into the dataset. The cells of every segment that is not compacted
+ * yet are kept in memory, so that the tail is replayed and compacted without
+ * reading the files again
+ */
+class InteractionLog {
+    private final Path directory;
+    private final int segmentRecords;
+
+    /* The summed counts of the cells of every segment that is not compacted, by segment */
+    private final TreeMap<Long, Map<Long, Integer>> tail = new TreeMap<>();
+    private long tailEvents;
+
+    private long activeSegment;
+    private int activeRecords;
+    private DataOutputStream activeOut;
+
+    private final static int RECORD_BYTES = 3 * Integer.BYTES;
+    private final static String SEGMENT_PREFIX = "segment-";
+    private final static String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * Opens the log and indexes its segments. The segments the dataset already
+     * contains are deleted, a record that was cut by a crash is dropped
+     * @param directory the directory of the segments
+     * @param compactedSegment the last segment the dataset contains
+     * @param segmentRecords the records of a segment before it is sealed
+     */
+    InteractionLog(Path directory, long compactedSegment, int segmentRecords) throws IOException {
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        Files.createDirectories(directory);
+
+        List<Long> segments;
+        try (Stream<Path> files = Files.list(directory)) {
+            segments = files
+                    .map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        activeSegment = compactedSegment + 1;
+        for (long segment : segments) {
+            if (segment <= compactedSegment) {
+                Files.delete(GetSegmentPath(segment));
+                continue;
+            }
+
+            activeRecords = IndexSegment(segment);
+            activeSegment = segment;
+        }
+
+        /* A full segment is sealed, the next check ins start a new one */
+        if (activeRecords >= segmentRecords) {
+            activeSegment++;
+            activeRecords = 0;
+        }
+        OpenActiveSegment();
+    }
+
+    /**
+     * Appends check ins to the log. They are flushed to the file before
+     * it returns, a crash of the master does not lose them
+     * @param interactions the check ins
+     */
+    synchronized void Append(List<Interaction> interactions) throws IOException {
+        for (Interaction interaction : interactions) {
+            if (activeRecords >= segmentRecords) {
+                Roll();
+            }
+
+            activeOut.writeInt(interaction.getUser());
+            activeOut.writeInt(interaction.getPoi());
+            activeOut.writeInt(interaction.getCount());
+            activeRecords++;
+
+            AddToTail(activeSegment, interaction.getUser(), interaction.getPoi(), interaction.getCount());
+        }
+
+        activeOut.flush();
+    }
+
+    /**
+     * Seals the active segment, if it has records, so that every check in
+     * so far is in a sealed segment
+     * @return the last sealed segment
+     */
+    synchronized long Seal() throws IOException {
+        if (activeRecords > 0) {
+            Roll();
+        }
+        return activeSegment - 1;
+    }
+
+    /**
+     * @param throughSegment the last segment
+     * @return the check ins of the segments up to the given one, summed per cell
+     */
+    synchronized List<Interaction> GetSegments(long throughSegment) {
+        return SumCells(tail.headMap(throughSegment, true).values());
+    }
+
+    /**
+     * @return the check ins of every segment that is not compacted, summed per cell
+     */
+    synchronized List<Interaction> GetTail() {
+        return SumCells(tail.values());
+    }
+
+    /**
+     * Deletes the segments the dataset now contains
+     * @param throughSegment the last compacted segment
+     */
+    synchronized void Remove(long throughSegment) throws IOException {
+        Iterator<Map.Entry<Long, Map<Long, Integer>>> segments = tail.headMap(throughSegment, true).entrySet().iterator();
+        while (segments.hasNext()) {
+            Map.Entry<Long, Map<Long, Integer>> segment = segments.next();
+            tailEvents -= segment.getValue().values().stream().mapToLong(Integer::longValue).sum();
+            Files.deleteIfExists(GetSegmentPath(segment.getKey()));
+            segments.remove();
+        }
+    }
+
+    /**
+     * @return the sum of the counts of the check ins that are not compacted
+     */
+    synchronized long getTailEvents() {
+        return tailEvents;
+    }
+
+    /**
+     * @return the number of the sealed segments that are not compacted
+     */
+    synchronized int getSealedSegments() {
+        return tail.headMap(activeSegment, false).size();
+    }
+
+    private void Roll() throws IOException {
+        activeOut.close();
+        activeSegment++;
+        activeRecords = 0;
+        OpenActiveSegment();
+    }
+
+    private void OpenActiveSegment() throws IOException {
+        activeOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(GetSegmentPath(activeSegment).toFile(), true)));
+    }
+
+    /**
+     * Reads the records of a segment into the tail, the incomplete record
+     * at its end, if any, is cut from the file
+     * @return the number of the records of the segment
+     */
+    private int IndexSegment(long segment) throws IOException {
+        Path path = GetSegmentPath(segment);
+        long records = Files.size(path) / RECORD_BYTES;
+
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(records * RECORD_BYTES);
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile())))) {
+            for (long record = 0; record < records; record++) {
+                AddToTail(segment, in.readInt(), in.readInt(), in.readInt());
+            }
+        }
+
+        /* An empty segment still exists, it is the active one */
+        tail.computeIfAbsent(segment, key -> new HashMap<>());
+        return (int) records;
+    }
+
+    private void AddToTail(long segment, int user, int poi, int count) {
+        tail.computeIfAbsent(segment, key -> new HashMap<>())
+                .merge(((long) user << 32) | poi, count, Integer::sum);
+        tailEvents += count;
+    }
+
+    private static List<Interaction> SumCells(Collection<Map<Long, Integer>> segments) {
+        Map<Long, Integer> cells = new TreeMap<>();
+        segments.forEach(segment -> segment.forEach((cell, count) -> cells.merge(cell, count, Integer::sum)));
+
+        return cells
+                .entrySet()
+                .stream()
+                .map(cell -> new Interaction((int) (cell.getKey() >>> 32), (int) (long) cell.getKey(), cell.getValue()))
+                .collect(Collectors.toList());
+    }
+
+    private Path GetSegmentPath(long segment) {
+        return directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+}
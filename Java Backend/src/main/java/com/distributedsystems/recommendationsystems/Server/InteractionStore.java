@@ -0,0 +1,156 @@
+package com.distributedsystems.recommendationsystems.Server;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.util.Arrays;
+
+/**
+ * The interactions of the dataset, kept sparse both per user and per
+ * POI, so that the rows a new check in touches are found without
+ * scanning the dense matrices. Users and POIs beyond the known ones
+ * grow the store, they are appended like in the dataset
+ */
+class InteractionStore {
+    private final SparseRows users = new SparseRows();
+    private final SparseRows pois = new SparseRows();
+
+    /**
+     * @param R the dense matrix of the dataset, a positive count is an interaction
+     */
+    InteractionStore(INDArray R) {
+        int userCount = R.rows();
+        int poiCount = R.columns();
+        double[] ratings = R.dup('c').data().asDouble();
+
+        users.Grow(userCount);
+        pois.Grow(poiCount);
+        for (int user = 0; user < userCount; user++) {
+            for (int poi = 0; poi < poiCount; poi++) {
+                double count = ratings[user * poiCount + poi];
+                if (count > 0) Add(user, poi, count);
+            }
+        }
+    }
+
+    /**
+     * Adds check ins of a user to a POI
+     * @return the total count of the user on the POI
+     */
+    synchronized double Add(int user, int poi, double count) {
+        users.Grow(user + 1);
+        pois.Grow(poi + 1);
+
+        pois.Add(poi, user, count);
+        return users.Add(user, poi, count);
+    }
+
+    synchronized int getUsers() {
+        return users.rows;
+    }
+
+    synchronized int getPois() {
+        return pois.rows;
+    }
+
+    /**
+     * @return the POIs of the user, in ascending order
+     */
+    synchronized int[] GetUserPois(int user) {
+        return users.GetColumns(user);
+    }
+
+    /**
+     * @return the counts of the user on its POIs, in the order of GetUserPois
+     */
+    synchronized double[] GetUserCounts(int user) {
+        return users.GetValues(user);
+    }
+
+    /**
+     * @return the users of the POI, in ascending order
+     */
+    synchronized int[] GetPoiUsers(int poi) {
+        return pois.GetColumns(poi);
+    }
+
+    /**
+     * @return the counts of the users of the POI, in the order of GetPoiUsers
+     */
+    synchronized double[] GetPoiCounts(int poi) {
+        return pois.GetValues(poi);
+    }
+
+    /**
+     * @return the number of the interactions of every user
+     */
+    synchronized int[] GetUserInteractionCounts() {
+        return Arrays.copyOf(users.sizes, users.rows);
+    }
+
+    /**
+     * @return the number of the interactions of every POI
+     */
+    synchronized int[] GetPoiInteractionCounts() {
+        return Arrays.copyOf(pois.sizes, pois.rows);
+    }
+
+    /**
+     * Rows of sorted columns and their values, each row grows by doubling
+     */
+    private static class SparseRows {
+        private int rows;
+        private int[][] columns = new int[0][];
+        private double[][] values = new double[0][];
+        private int[] sizes = new int[0];
+
+        void Grow(int minRows) {
+            if (minRows <= rows) return;
+
+            if (minRows > columns.length) {
+                int capacity = Math.max(minRows, 2 * columns.length);
+                columns = Arrays.copyOf(columns, capacity);
+                values = Arrays.copyOf(values, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+            }
+            for (int row = rows; row < minRows; row++) {
+                columns[row] = new int[0];
+                values[row] = new double[0];
+            }
+            rows = minRows;
+        }
+
+        /**
+         * @return the new value of the cell
+         */
+        double Add(int row, int column, double value) {
+            int size = sizes[row];
+            int index = Arrays.binarySearch(columns[row], 0, size, column);
+            if (index >= 0) {
+                values[row][index] += value;
+                return values[row][index];
+            }
+
+            if (size == columns[row].length) {
+                int capacity = Math.max(4, 2 * size);
+                columns[row] = Arrays.copyOf(columns[row], capacity);
+                values[row] = Arrays.copyOf(values[row], capacity);
+            }
+
+            int insertion = -index - 1;
+            System.arraycopy(columns[row], insertion, columns[row], insertion + 1, size - insertion);
+            System.arraycopy(values[row], insertion, values[row], insertion + 1, size - insertion);
+            columns[row][insertion] = column;
+            values[row][insertion] = value;
+            sizes[row]++;
+            return value;
+        }
+
+        int[] GetColumns(int row) {
+            return row < rows ? Arrays.copyOf(columns[row], sizes[row]) : new int[0];
+        }
+
+        double[] GetValues(int row) {
+            return row < rows ? Arrays.copyOf(values[row], sizes[row]) : new double[0];
+        }
+    }
+}
@@ -2,7 +2,14 @@ package com.distributedsystems.recommendationsystems.Server;
 
 import com.distributedsystems.recommendationsystems.Abstractions.IMaster;
 import com.distributedsystems.recommendationsystems.Models.CommunicationMessage;
+import com.distributedsystems.recommendationsystems.Models.CommunicationMode;
+import com.distributedsystems.recommendationsystems.Models.EncodedMatrix;
+import com.distributedsystems.recommendationsystems.Models.FactorEncoding;
+import com.distributedsystems.recommendationsystems.Models.Interaction;
 import com.distributedsystems.recommendationsystems.Models.MessageType;
+import com.distributedsystems.recommendationsystems.Models.SchedulingMode;
+import com.distributedsystems.recommendationsystems.Utils.FactorCodec;
+import com.distributedsystems.recommendationsystems.Utils.FrameUtils;
 import com.distributedsystems.recommendationsystems.Utils.MatrixHelpers;
 import com.distributedsystems.recommendationsystems.Utils.ParserUtils;
 import com.google.gson.Gson;
@@ -13,31 +20,105 @@ import org.gavaghan.geodesy.GlobalCoordinates;
 import org.gavaghan.geodesy.GlobalPosition;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.nd4j.linalg.inverse.InvertMatrix;
 import org.nd4j.linalg.ops.transforms.Transforms;
 
 import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class Master extends Server implements IMaster {
     private int currentIteration;
+
+    /* The number the messages of the running iteration carry, it moves on with
+     * every iteration and with every restart of one, so nothing in flight of an
+     * aborted iteration is taken for its rerun, while the iterations are counted
+     * apart from it */
+    private int currentGeneration;
+    private int trainingStartIteration;
     private int howManyWorkersToWait;
 
     private double latestError;
+    private double latestFullSweepError;
     private long loopCalculationStartTime;
 
-    /* ArrayList of the POIs info loaded from json file */
-    private Map<String, Poi> localPois;
+    /* The POIs info loaded from json file, by their column in the dataset */
+    private PoiCatalog poiCatalog;
 
     /* Available workers to distribute the work */
-    private ArrayList<Worker> availableWorkers;
+    private List<Worker> availableWorkers;
+
+    /* Workers that joined during the training, they get rows from the next iteration on */
+    private final List<Worker> pendingWorkers = new ArrayList<>();
+    private final Set<String> refusedWorkers = new HashSet<>();
+
+    /* The latest heartbeat of every worker, and the workers a message could not reach */
+    private final Map<String, Long> lastHeartbeats = new ConcurrentHashMap<>();
+    private final Set<String> unreachableWorkers = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean isTraining;
+    private boolean isTrainingStarted;
+
+    /* Ring mode: the workers that get the factors a worker sends back, before the iteration runs */
+    private List<Worker> resynchronizedWorkers;
+
+    /* How the factor matrices are exchanged between the workers */
+    private CommunicationMode communicationMode = CommunicationMode.MASTER;
+
+    /* Bounded staleness mode: how many iterations a worker may run ahead, and the clocks of the workers */
+    private int staleness;
+    private volatile StalenessClock stalenessClock;
+
+    /* How the rows of a half step are given to the workers */
+    private SchedulingMode schedulingMode = SchedulingMode.STATIC;
+    private volatile ChunkScheduler chunkScheduler;
+    private volatile SpeculationTracker speculationTracker;
+    private CommunicationMessage halfStepMessage;
+
+    /* Looks for dead workers and for stalled ranges */
+    private ScheduledExecutorService monitor;
+
+    /* How the factor matrices are encoded, and the factors the workers hold */
+    private FactorEncoding factorEncoding = FactorEncoding.RAW;
+    private double deltaThreshold;
+    private INDArray xReference, yReference;
+    private final AtomicLong iterationBytesOnWire = new AtomicLong();
+
+    /* Lazy updates: the change under which the workers skip a converged row, zero solves every row */
+    private double updateTolerance;
+
+    /* The seed of the random factors, and if a training starts from the factors of the previous one */
+    private long randomSeed = DEFAULT_RANDOM_SEED;
+    private boolean isWarmStart;
+
+    /* The factor matrices of the running half steps, filled as the slices arrive */
+    private volatile FactorAssembly xAssembly;
+    private volatile FactorAssembly yAssembly;
+
+    /* The grams of X and Y summed from the grams of the slices, null when unknown */
+    private INDArray xGram, yGram;
+
+    /* Pipelined mode: the execution times of the chunks of the running iteration */
+    private final HashMap<String, Double> xChunkTimes = new HashMap<>();
+    private final HashMap<String, Double> yChunkTimes = new HashMap<>();
 
     /* Contains the response messages of workers */
-    private ArrayList<CommunicationMessage> xMessages;
-    private ArrayList<CommunicationMessage> yMessages;
+    private ArrayList<CommunicationMessage> iterationMessages;
 
     /* Execution Times of X,Y Matrices and Latest Distribution */
     private HashMap<String, Double> xExecutionTimes;
@@ -45,17 +126,78 @@ public class Master extends Server implements IMaster {
     private HashMap<String, Integer> latestWorkersXDistribution;
     private HashMap<String, Integer> latestWorkersYDistribution;
 
+    /* The interactions of every user and poi, and the cost of solving every row of X and Y */
+    private InteractionStore interactionStore;
+    private double[] xRowCosts, yRowCosts;
+
+    /*
+     * Fold in: the check ins that arrived while training, which wait for its factors,
+     * if the POIs they touch are solved again too, and the grams of the trained factors
+     */
+    private final List<Interaction> pendingInteractions = new ArrayList<>();
+    private boolean isFoldingInPois;
+    private INDArray foldInXGram, foldInYGram;
+    private INDArray foldInXInverse, foldInYInverse;
+
+    /* The scores of the served model, X * Y.T, only the fold in reads them and writes its rows and columns in place */
+    private INDArray servedScores;
+
+    /* Sessions: the time a session recommendation should take, and how many sessions to benchmark after a training */
+    private double sessionLatencyBudget = DEFAULT_SESSION_LATENCY_BUDGET_MS;
+    private int sessionBenchmarkSize;
+
+    /* The model the recommendations are answered from, null before the first one, and its version */
+    private volatile ServingModel servedModel;
+    private long modelVersion;
+
+    /* How many of the best unvisited POIs of every user are kept with the model */
+    private int candidatesPerUser = DEFAULT_CANDIDATES_PER_USER;
+
+    /* The most visited POIs, answered while there is no model and to the users it does not know, and the check ins of every POI */
+    private volatile PopularityFallback popularityFallback;
+    private double[] poiCheckIns;
+
+    /*
+     * The log of the check ins since the dataset was written, and the retrains: how many
+     * check ins start one, zero never retrains, and the check ins since the latest training
+     */
+    private InteractionLog interactionLog;
+    private int retrainThreshold;
+    private long eventsSinceTraining;
+    private ScheduledExecutorService retrainScheduler;
+
+    /* The cost per second of the workers, estimated from the execution times */
+    private final ThroughputPartitioner xPartitioner = new ThroughputPartitioner();
+    private final ThroughputPartitioner yPartitioner = new ThroughputPartitioner();
+
     /* Matrices */
-    private INDArray RUpdated;
     private INDArray R, P, C, X, Y;
 
     /* Finals */
     private final static double L = 0.1;
-    private final static double A = 40;
 
     private final static int MAX_ITERATIONS = 800;
+    private final static int FULL_SEND_PERIOD = 10;
+    private final static int FULL_SWEEP_PERIOD = 5;
+    private final static long DEFAULT_RANDOM_SEED = 42;
+    private final static double DEFAULT_SESSION_LATENCY_BUDGET_MS = 50;
+    private final static int MAX_SESSION_POIS = 100;
+    private final static int DEFAULT_CANDIDATES_PER_USER = 200;
+    private final static double SPHERE_RADIUS_KM = 6371;
+    private final static double SPHERE_DISTANCE_MARGIN = 1.01;
+    private final static int BENCHMARK_SESSION_POIS = 10;
+    private final static int PIPELINE_CHUNK_ROWS = 64;
+    private final static int SCHEDULER_CHUNK_ROWS = 32;
+    private final static long STALL_CHECK_PERIOD_MS = 250;
+    private final static long FAILURE_TIMEOUT_MS = 10000;
     private final static double MIN_DIFFERENCE = 0.001;
+    private final static long RETRAIN_CHECK_PERIOD_MS = 1000;
+    private final static int LOG_SEGMENT_RECORDS = 65536;
+    private final static int COMPACTION_SEGMENTS = 4;
 
+    private final static String DATASET_PATH = "data/inputMatrix.csv";
+    private final static String BINARY_DATASET_PATH = "data/inputMatrix.bin";
+    private final static String LOG_DIRECTORY = "data/log";
     private final static String NEW_X_PATH = "data/newX.txt";
     private final static String NEW_Y_PATH = "data/newY.txt";
 
@@ -76,7 +218,9 @@ public class Master extends Server implements IMaster {
     /**
      * Runnable Implementation
      */
-    public synchronized void run() {
+    public void run() {
+        Socket socket = getSocketConn();
+
         /* Connection between Java Clients */
         ObjectOutputStream out = null;
         ObjectInputStream in = null;
@@ -91,168 +235,356 @@ public class Master extends Server implements IMaster {
             CommunicationMessage message;
 
             /*
-             * ************************************
-             * ************ Warning!! *************
-             * ******** Hacking The Kernel ********
-             * ************************************
-             * First try creating a Java Connection.
-             * Remember, if it is not a Java Connection,
-             * ObjectInputStream will cut the 4 first bytes because
-             * it will think that this is the header of the message.
-             * So The C# Client must send an empty header of 4 bytes!!!
-             * By doing this way, the DataInputStream will read the message
-             * PERFECTLY!!!
+             * Sniff the 4 first bytes of the connection.
+             * Workers send their matrices as binary frames, which
+             * start with the frame magic and are read straight
+             * from the socket channel.
              */
-            try {
+            PushbackInputStream socketIn = new PushbackInputStream(socket.getInputStream(), FrameUtils.MAGIC_SIZE);
+            byte[] magic = SniffConnection(socketIn);
+
+            if (FrameUtils.IsFrameMagic(magic)) {
+                /* Slices are read in parallel, straight into the matrix of their half step */
+                message = FrameUtils.ReadMessage(socket.getChannel(), this::GetFrameTarget);
                 isJavaConnection = true;
-                out = new ObjectOutputStream(getSocketConn().getOutputStream());
-                in = new ObjectInputStream(getSocketConn().getInputStream());
-            } catch (Exception e) {
-                isJavaConnection = false;
-                printOut = new PrintWriter(getSocketConn().getOutputStream());
-                dataIn = new DataInputStream(getSocketConn().getInputStream());
-            }
+                isAndroidConnection = false;
+            } else {
+                out = new ObjectOutputStream(socket.getOutputStream());
+
+                /*
+                 * ************************************
+                 * ************ Warning!! *************
+                 * ******** Hacking The Kernel ********
+                 * ************************************
+                 * Java Connections start with the header of the
+                 * ObjectOutputStream, so we put it back for the
+                 * ObjectInputStream. Otherwise it is the C# Client,
+                 * which must send an empty header of 4 bytes!!!
+                 * The sniffing has already cut them, so the
+                 * DataInputStream will read the message PERFECTLY!!!
+                 */
+                isJavaConnection = IsObjectStreamMagic(magic);
+                if (isJavaConnection) {
+                    socketIn.unread(magic);
+                    in = new ObjectInputStream(socketIn);
+                } else {
+                    printOut = new PrintWriter(socket.getOutputStream());
+                    dataIn = new DataInputStream(socketIn);
+                }
 
-            if (isJavaConnection) {
-                Object receivedObject = in.readObject();
-                if (receivedObject instanceof String) {
-                    message = new Gson()
-                            .fromJson((String) receivedObject, CommunicationMessage.class);
-                    isAndroidConnection = true;
+                if (isJavaConnection) {
+                    Object receivedObject = in.readObject();
+                    if (receivedObject instanceof String) {
+                        message = new Gson()
+                                .fromJson((String) receivedObject, CommunicationMessage.class);
+                        isAndroidConnection = true;
+                    } else {
+                        message = (CommunicationMessage) receivedObject;
+                        isAndroidConnection = false;
+                    }
                 } else {
-                    message = (CommunicationMessage) receivedObject;
+                    byte[] receivedBytes = new byte[dataIn.available()];
+                    for (int i = 0; i < receivedBytes.length; i++) {
+                        receivedBytes[i] = dataIn.readByte();
+                    }
+
+                    String rec = new String(receivedBytes);
+                    message = new Gson().fromJson(rec, CommunicationMessage.class);
                     isAndroidConnection = false;
                 }
-            } else {
-                byte[] receivedBytes = new byte[dataIn.available()];
-                for (int i = 0; i < receivedBytes.length; i++) {
-                    receivedBytes[i] = dataIn.readByte();
-                }
+            }
 
-                String rec = new String(receivedBytes);
-                message = new Gson().fromJson(rec, CommunicationMessage.class);
-                isAndroidConnection = false;
+            /* Chunks are forwarded as soon as they are read, without waiting for the state of the master */
+            if (message.getType() == MessageType.X_CHUNK || message.getType() == MessageType.Y_CHUNK) {
+                HandleChunk(message);
+                return;
+            }
+
+            /* Heartbeats of known workers must not wait for the state of the master either */
+            if (message.getType() == MessageType.HEARTBEAT &&
+                    lastHeartbeats.replace(message.getServerName(), System.nanoTime()) != null) {
+                return;
             }
 
-            switch (message.getType()) {
-                case HELLO_WORLD: {
-                    /* When a worker sends hello world add him to the list */
-                    Worker worker = new Worker(message.getServerName(), message.getIp(), message.getPort());
-                    worker.setInstanceCpuCores(message.getCpuCores());
-                    worker.setInstanceRamSize(message.getRamGBSize());
-                    availableWorkers.add(worker);
+            /* Recommendations are answered from the published model, they never wait for the training */
+            if (message.getType() == MessageType.ASK_RECOMMENDATION) {
+                AnswerRecommendation(message, out, printOut, isJavaConnection, isAndroidConnection);
+                return;
+            }
 
-                    System.out.println(worker.toString());
+            /* Reading is done, the state of the master is handled one message at a time */
+            synchronized (this) {
+                switch (message.getType()) {
+                    case HELLO_WORLD: {
+                        /* A known worker that says hello again was restarted and lost its matrices */
+                        RemoveWorker(message.getServerName(), "it was restarted");
+                        refusedWorkers.remove(message.getServerName());
 
-                    /* If we reached our point, start the algorithm */
-                    if (availableWorkers.size() >= howManyWorkersToWait) {
-                        StartMatrixFactorization();
+                        AddWorker(message);
+                        break;
+                    }
+                    case HEARTBEAT: {
+                        /* A worker that was taken for dead is still alive, it joins again */
+                        if (!lastHeartbeats.containsKey(message.getServerName()) &&
+                                !refusedWorkers.contains(message.getServerName())) {
+                            AddWorker(message);
+                        }
+                        break;
+                    }
+                    case LEAVE: {
+                        RemoveWorker(message.getServerName(), "it left");
+                        break;
                     }
+                    case X_CALCULATED: {
+                        iterationBytesOnWire.addAndGet(message.getFrameBytes());
+                        if (IsOwnRange(message)) {
+                            xExecutionTimes.put(message.getServerName(), message.getExecutionTime());
+                        }
+                        if (communicationMode == CommunicationMode.BOUNDED_STALENESS) {
+                            HandleStaleResult(message, true);
+                            break;
+                        }
 
-                    break;
-                }
-                case X_CALCULATED: {
-                    xMessages.add(message);
-                    xExecutionTimes.put(message.getServerName(), message.getExecutionTime());
-                    if (xMessages.size() >= availableWorkers.size()) {
-                        LinkedList<INDArray> XDist = new LinkedList<>();
+                        /* Ignore slices of an older half step, and the duplicates of speculated or reassigned ranges */
+                        if (xAssembly == null || message.getIteration() != xAssembly.getIteration()) break;
+                        if (!IsFirstResult(message, xAssembly)) {
+                            /* The chunk was calculated again elsewhere, the worker is idle all the same */
+                            AssignNextChunk(message, false);
+                            break;
+                        }
 
-                        /* Ascending sort of starting index */
-                        xMessages.sort(Comparator.comparingInt(CommunicationMessage::getStartIndex));
-                        xMessages.forEach((msg) -> XDist.add(msg.getXArray()));
+                        if (!message.isAssembledInPlace()) {
+                            xAssembly.PutRows(message.getStartIndex(), message.getXArray() != null ?
+                                    message.getXArray() :
+                                    FactorCodec.Decode(message.getEncodedXArray(),
+                                            GetRows(xReference, message.getStartIndex(), message.getEndIndex())));
+                        }
+                        xAssembly.AddGram(message.getXGramArray());
 
-                        /* Stack the matrices to one, sort MATTERS */
-                        X = Nd4j.vstack(XDist);
+                        /* The last slice landed, X is ready */
+                        if (xAssembly.MarkReceived(message.getStartIndex(), message.getEndIndex())) {
+                            X = xAssembly.getMatrix();
+                            xGram = xAssembly.getGram();
+                            xAssembly = null;
 
-                        DistributeXMatrixToWorkers();
+                            DistributeXMatrixToWorkers();
+                        } else {
+                            AssignNextChunk(message, true);
+                        }
 
-                        //When finished, clear it for the next loop
-                        xMessages.clear();
+                        break;
                     }
+                    case Y_CALCULATED: {
+                        iterationBytesOnWire.addAndGet(message.getFrameBytes());
+                        if (IsOwnRange(message)) {
+                            yExecutionTimes.put(message.getServerName(), message.getExecutionTime());
+                        }
+                        if (communicationMode == CommunicationMode.BOUNDED_STALENESS) {
+                            HandleStaleResult(message, false);
+                            break;
+                        }
 
-                    break;
-                }
-                case Y_CALCULATED: {
-                    yMessages.add(message);
-                    yExecutionTimes.put(message.getServerName(), message.getExecutionTime());
-                    if (yMessages.size() >= availableWorkers.size()) {
-                        LinkedList<INDArray> YDist = new LinkedList<>();
-
-                        /* Ascending sort of starting index */
-                        yMessages.sort(Comparator.comparingInt(CommunicationMessage::getStartIndex));
-                        yMessages.forEach((msg) -> YDist.add(msg.getYArray()));
-
-                        /* Stack the matrices to one, sort MATTERS */
-                        Y = Nd4j.vstack(YDist);
-
-                        /* Calculate the new error */
-                        double error = CalculateError();
-                        double difference = Math.abs(error - latestError);
-
-                        System.out.println("***********************************************");
-                        System.out.println("Loop No.: " + currentIteration);
-                        System.out.println("Error: " + error);
-                        System.out.println("Previous Error: " + latestError);
-                        System.out.println("Difference: " + difference);
-                        System.out.println("Loop Elapsed Time: " +
-                                ParserUtils.GetTimeInSec(loopCalculationStartTime) + "sec");
-                        System.out.println("***********************************************");
-
-                        /* If we reached our limit of the difference or the iterations, end the algorithm */
-                        if (difference < MIN_DIFFERENCE || currentIteration >= MAX_ITERATIONS) {
-                            FinishMatrixFactorization();
-                            return;
+                        /* Ignore slices of an older half step, and the duplicates of speculated or reassigned ranges */
+                        if (yAssembly == null || message.getIteration() != yAssembly.getIteration()) break;
+                        if (!IsFirstResult(message, yAssembly)) {
+                            /* The chunk was calculated again elsewhere, the worker is idle all the same */
+                            AssignNextChunk(message, false);
+                            break;
+                        }
+
+                        if (!message.isAssembledInPlace()) {
+                            yAssembly.PutRows(message.getStartIndex(), message.getYArray() != null ?
+                                    message.getYArray() :
+                                    FactorCodec.Decode(message.getEncodedYArray(),
+                                            GetRows(yReference, message.getStartIndex(), message.getEndIndex())));
+                        }
+                        yAssembly.AddGram(message.getYGramArray());
+
+                        /* The last slice landed, Y is ready */
+                        if (yAssembly.MarkReceived(message.getStartIndex(), message.getEndIndex())) {
+                            Y = yAssembly.getMatrix();
+                            yGram = yAssembly.getGram();
+                            yAssembly = null;
+
+                            /* If we reached our limit of the difference or the iterations, end the algorithm */
+                            if (IsIterationConverged(CalculateError())) {
+                                chunkScheduler = null;
+                                speculationTracker = null;
+                                FinishMatrixFactorization();
+                                return;
+                            }
+
+                            ContinueTraining(false);
+                            loopCalculationStartTime = System.nanoTime();
+                        } else {
+                            AssignNextChunk(message, true);
+                        }
+                        break;
+                    }
+                    case ITERATION_CALCULATED: {
+                        /* Ring mode, the workers report only their part of the error */
+                        if (message.getIteration() != currentGeneration) break;
+
+                        iterationMessages.add(message);
+                        iterationBytesOnWire.addAndGet(message.getBytesOnWire());
+                        xExecutionTimes.put(message.getServerName(), message.getExecutionTime());
+                        yExecutionTimes.put(message.getServerName(), message.getYExecutionTime());
+                        if (iterationMessages.size() >= availableWorkers.size()) {
+                            double error = iterationMessages
+                                    .stream()
+                                    .mapToDouble(CommunicationMessage::getPartialError)
+                                    .sum();
+
+                            iterationMessages.clear();
+
+                            /* The factors are needed only at the end, ask them from the first worker */
+                            if (IsIterationConverged(error)) {
+                                AskFactors(availableWorkers.get(0));
+                                return;
+                            }
+
+                            ContinueTraining(false);
+                            loopCalculationStartTime = System.nanoTime();
+                        }
+                        break;
+                    }
+                    case FACTORS_CALCULATED: {
+                        X = message.getXArray();
+                        Y = message.getYArray();
+
+                        /* The workers changed, the factors of the ring go to the ones that need them */
+                        if (resynchronizedWorkers != null) {
+                            TransferMatricesToWorkers(resynchronizedWorkers);
+                            resynchronizedWorkers = null;
+                            DistributeRingIteration();
+                            break;
                         }
 
-                        latestError = error;
-                        currentIteration++;
+                        FinishMatrixFactorization();
+                        break;
+                    }
+                    case INGEST_INTERACTIONS: {
+                        long startTime = System.nanoTime();
+                        IngestInteractions(message.getInteractions());
 
-                        DistributeYMatrixToWorkers();
-                        loopCalculationStartTime = System.nanoTime();
+                        CommunicationMessage result = new CommunicationMessage();
+                        result.setType(MessageType.INTERACTIONS_INGESTED);
+                        result.setExecutionTime(ParserUtils.GetTimeInSec(startTime));
 
-                        //When finished, clear it for the next loop
-                        yMessages.clear();
+                        SendReply(result, message, out, printOut, isJavaConnection, isAndroidConnection);
+                        break;
                     }
-                    break;
-                }
-                case ASK_RECOMMENDATION: {
-                    /* Accept only when the R is updated */
-                    if (RUpdated == null) return;
-
-                    List<Poi> userPois = CalculateBestLocalPOIsForUser(
-                            message.getUserToAsk(),
-                            message.getRadiusInKm(),
-                            message.getUserLat(),
-                            message.getUserLng());
-
-                    CommunicationMessage result = new CommunicationMessage();
-                    result.setType(MessageType.REPLY_RECOMMENDATION);
-                    result.setPoisToReturn(userPois);
-
-                    if (isJavaConnection) {
-                        if (isAndroidConnection) {
-                            out.writeObject(new Gson().toJson(result));
-                            out.flush();
-                        } else {
-                            SendCommunicationMessage(result, message.getIp(), message.getPort());
-                        }
-                    } else {
-                        printOut.print(new Gson().toJson(result));
-                        printOut.flush();
+                    default: {
+                        break;
                     }
                 }
-                default: {
-                    break;
-                }
             }
         } catch (ClassNotFoundException | IOException e) {
             e.printStackTrace();
         } finally {
             CloseConnections(in, out, dataIn, printOut);
+            CloseConnections(socket, null, null);
+        }
+    }
+
+    /**
+     * Answers a recommendation from the model that is published when it
+     * arrives. A user the model knows is answered from its candidates, a user
+     * that did not sign in or that the model does not know yet from its
+     * session. Only without either of them, or before the first model, the
+     * reply is of the most visited POIs around the user, it is marked as a
+     * fallback and has the version zero. A request with categories, or with a
+     * limit per category, ranks every category on its own from the POIs of
+     * the category only
+     */
+    private void AnswerRecommendation(CommunicationMessage message, ObjectOutputStream out, PrintWriter printOut,
+                                      boolean isJavaConnection, boolean isAndroidConnection) throws IOException {
+        ServingModel model = servedModel;
+        Set<Poi.POICategoryID> categories = GetRequestedCategories(message);
+        int poisPerCategory = message.getPoisPerCategory() > 0 ? message.getPoisPerCategory() : Integer.MAX_VALUE;
+
+        CommunicationMessage result = new CommunicationMessage();
+        result.setType(MessageType.REPLY_RECOMMENDATION);
+
+        Integer user = message.getUserToAsk();
+        boolean isKnownUser = model != null && user != null && user >= 0 && user < model.getUsers();
+
+        /* The session is ranked only without a known user, and only if any of its POIs is known */
+        boolean isSession = model != null && !isKnownUser && message.getSessionPois() != null && message.getSessionPois()
+                .stream()
+                .anyMatch(poi -> poi != null && poi >= 0 && poi < model.getPois());
+
+        if (isKnownUser) {
+            result.setPoisToReturn(CalculateBestLocalPOIsForUser(
+                    model,
+                    user,
+                    message.getRadiusInKm(),
+                    message.getUserLat(),
+                    message.getUserLng(),
+                    categories,
+                    poisPerCategory));
+            result.setModelVersion(model.getVersion());
+        } else if (isSession) {
+            result.setPoisToReturn(CalculateBestLocalPOIsForSession(
+                    model,
+                    message.getSessionPois(),
+                    message.getRadiusInKm(),
+                    message.getUserLat(),
+                    message.getUserLng(),
+                    categories,
+                    poisPerCategory));
+            result.setModelVersion(model.getVersion());
+        } else {
+            result.setPoisToReturn(CalculatePopularLocalPOIs(
+                    message.getRadiusInKm(),
+                    message.getUserLat(),
+                    message.getUserLng(),
+                    categories,
+                    poisPerCategory));
+            result.setFallback(true);
+        }
+
+        SendReply(result, message, out, printOut, isJavaConnection, isAndroidConnection);
+    }
+
+    /**
+     * @param message the request
+     * @return the categories the request ranks on their own, null to rank the whole catalog
+     */
+    private static Set<Poi.POICategoryID> GetRequestedCategories(CommunicationMessage message) {
+        if (message.getCategories() != null && !message.getCategories().isEmpty()) {
+            return message.getCategories()
+                    .stream()
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toCollection(() -> EnumSet.noneOf(Poi.POICategoryID.class)));
+        }
+
+        /* A limit per category without categories limits every category */
+        return message.getPoisPerCategory() > 0 ? EnumSet.allOf(Poi.POICategoryID.class) : null;
+    }
+
+    /**
+     * Replies to a client through the connection it used
+     * @param result the reply
+     * @param message the message of the client
+     */
+    private void SendReply(CommunicationMessage result, CommunicationMessage message,
+                           ObjectOutputStream out, PrintWriter printOut,
+                           boolean isJavaConnection, boolean isAndroidConnection) throws IOException {
+        if (isJavaConnection) {
+            if (isAndroidConnection) {
+                out.writeObject(new Gson().toJson(result));
+                out.flush();
+            } else {
+                SendCommunicationMessage(result, message.getIp(), message.getPort());
+            }
+        } else {
+            printOut.print(new Gson().toJson(result));
+            printOut.flush();
         }
     }
 
-    private void StartMatrixFactorization() {
+    private void StartMatrixFactorization(boolean isWarm) {
         /* Calculate the number of total cores */
         int totalCores = availableWorkers
                 .stream()
@@ -263,206 +595,1597 @@ public class Master extends Server implements IMaster {
         System.out.println("Total Cores: " + totalCores + " Cores");
 
         /* C and P matrices only need to be calculated once and passed once to the workers */
-        C = (R.mul(A)).add(1);
+        C = (R.mul(MatrixHelpers.ALPHA)).add(1);
         P = Transforms.greaterThanOrEqual(R, Nd4j.zeros(R.rows(), R.columns()));
 
-        /* let's get the K << max{U,I}
-           meaning a number much smaller than the biggest column or dimension */
-        int BiggestDimension = R.columns() > R.rows() ?
-                R.columns() : R.rows();
+        int K = GetFactorsCount();
 
-        int K = BiggestDimension / 10;
+        xRowCosts = CalculateRowCosts(interactionStore.GetUserInteractionCounts(), K);
+        yRowCosts = CalculateRowCosts(interactionStore.GetPoiInteractionCounts(), K);
 
-        X = MatrixHelpers.GenerateRandomMatrix(R, K, false);
-        Y = MatrixHelpers.GenerateRandomMatrix(R, K, true);
+        InitializeFactors(K, isWarm);
+
+        isTraining = true;
+        isTrainingStarted = true;
 
         TransferMatricesToWorkers();
-        DistributeYMatrixToWorkers();
+        DistributeCurrentStep();
 
         loopCalculationStartTime = System.nanoTime();
     }
 
-    private void FinishMatrixFactorization() {
-        System.out.println("**************************************");
-        System.out.println("Writing to " + NEW_X_PATH + ", " + NEW_Y_PATH + "newY.txt");
+    /**
+     * Starts the step the training is at: a whole iteration for the ring
+     * and the pipelined mode, otherwise the half step of the running assembly
+     */
+    private void DistributeCurrentStep() {
+        if (communicationMode == CommunicationMode.RING) {
+            DistributeRingIteration();
+        } else if (communicationMode == CommunicationMode.PIPELINED) {
+            DistributePipelinedIteration();
+        } else if (communicationMode == CommunicationMode.BOUNDED_STALENESS) {
+            DistributeStaleIteration();
+        } else if (yAssembly != null) {
+            DistributeXMatrixToWorkers();
+        } else {
+            DistributeYMatrixToWorkers();
+        }
+    }
 
-        /* Write the X and Y Matrices */
-        Nd4j.writeTxt(X, NEW_X_PATH);
-        Nd4j.writeTxt(Y, NEW_Y_PATH);
+    /**
+     * Registers a worker. Before the training it waits for the rest, during
+     * the training it gets rows from the next iteration on
+     * @param message the HELLO_WORLD or HEARTBEAT message of the worker
+     */
+    private void AddWorker(CommunicationMessage message) {
+        Worker worker = new Worker(message.getServerName(), message.getIp(), message.getPort());
+        worker.setInstanceCpuCores(message.getCpuCores());
+        worker.setInstanceRamSize(message.getRamGBSize());
+        worker.setInstanceThroughput(message.getCalibratedThroughput());
+        worker.setInstanceFreeMemory(message.getFreeOffHeapBytes());
+
+        System.out.println(worker.toString());
+
+        /* Refuse the workers that can not hold the matrices */
+        long requiredBytes = GetRequiredWorkerBytes();
+        if (worker.getInstanceFreeMemory() > 0 && worker.getInstanceFreeMemory() < requiredBytes) {
+            System.out.println("Refusing " + worker.getName() + ": it needs " +
+                    requiredBytes / 1024 / 1024 + "MB of free memory");
+            refusedWorkers.add(worker.getName());
+            return;
+        }
 
-        long startTime = System.nanoTime();
+        lastHeartbeats.put(worker.getName(), System.nanoTime());
+        unreachableWorkers.remove(worker.getName());
 
-        /* Calculate the new R table */
-        RUpdated = X.mmul(Y.transpose());
+        if (isTraining) {
+            pendingWorkers.add(worker);
 
-        System.out.println("New R Calculated in: " + ParserUtils.GetTimeInSec(startTime) + "sec");
-        System.out.println("**************************************");
+            /* Nobody is left to finish the running iteration, the newcomer takes it over */
+            if (availableWorkers.isEmpty()) {
+                ContinueTraining(false);
+            } else {
+                System.out.println(worker.getName() + " joins from the next iteration");
+            }
+            return;
+        }
+
+        availableWorkers.add(worker);
+
+        /* If we reached our point, start the algorithm */
+        if (!isTrainingStarted && availableWorkers.size() >= howManyWorkersToWait) {
+            StartMatrixFactorization(isWarmStart);
+        }
     }
 
     /**
-     * IMaster Implementation
+     * Removes a worker that left or died. During the training the running
+     * iteration is aborted and its rows are split again between the rest
+     * @param workerName the name of the worker
+     * @param reason why the worker is removed
      */
-    public void Initialize() {
-        /* Starting values and initializations */
-        currentIteration = 0;
-        latestError = Double.MAX_VALUE - 1;
+    private void RemoveWorker(String workerName, String reason) {
+        lastHeartbeats.remove(workerName);
+        unreachableWorkers.remove(workerName);
+        pendingWorkers.removeIf(worker -> worker.getName().equals(workerName));
 
-        availableWorkers = new ArrayList<>();
+        if (!availableWorkers.removeIf(worker -> worker.getName().equals(workerName))) return;
 
-        xMessages = new ArrayList<>();
-        yMessages = new ArrayList<>();
+        System.out.println("Removing " + workerName + ": " + reason);
+        xExecutionTimes.remove(workerName);
+        yExecutionTimes.remove(workerName);
 
-        xExecutionTimes = new HashMap<>();
-        yExecutionTimes = new HashMap<>();
-        latestWorkersXDistribution = new HashMap<>();
-        latestWorkersYDistribution = new HashMap<>();
+        if (isTraining) {
+            RestartIteration();
+        }
+    }
 
-        /* Read the DataSet */
-        R = ParserUtils.LoadDataSet("data/inputMatrix.csv");
-        if (R == null) {
-            System.out.println("Wrong DataSet! Please contact with the Developers!");
-            return;
+    /**
+     * Gives up the running iteration, since a worker with rows of it is
+     * gone, and runs it again under a new generation, so nothing in flight
+     * of the aborted one is taken for it. The iteration keeps its number,
+     * so the full sends, the full sweeps and the limit of the iterations
+     * run as if it never failed. The ring and the pipelined
+     * workers wait for slices and chunks of each other, so they are
+     * released first
+     */
+    private void RestartIteration() {
+        int abortedGeneration = currentGeneration;
+        currentGeneration++;
+
+        iterationMessages.clear();
+        chunkScheduler = null;
+        speculationTracker = null;
+
+        if (communicationMode == CommunicationMode.RING || communicationMode == CommunicationMode.PIPELINED) {
+            CommunicationMessage reset = new CommunicationMessage();
+            reset.setType(MessageType.RESET);
+            reset.setIteration(abortedGeneration);
+            availableWorkers.parallelStream().forEach(worker -> SendToWorker(reset, worker));
         }
 
-        /* Init C and P */
-        C = Nd4j.zeros(R.rows(), R.columns());
-        P = Nd4j.zeros(R.rows(), R.columns());
+        System.out.println("Iteration " + currentIteration + " runs again as generation " + currentGeneration +
+                " with " + (availableWorkers.size() + pendingWorkers.size()) + " workers");
 
-        /* If the newX and the newY are existing, calculate the new R */
-        Path newXFile = Paths.get(NEW_X_PATH);
-        Path newYFile = Paths.get(NEW_Y_PATH);
-        if (Files.exists(newXFile) && Files.exists(newYFile)) {
-            X = Nd4j.readTxt(NEW_X_PATH);
-            Y = Nd4j.readTxt(NEW_Y_PATH);
-            System.out.println("**************************************");
-            System.out.println("Loading to " + NEW_X_PATH + ", " + NEW_Y_PATH + "newY.txt");
-            System.out.println("**************************************");
+        ContinueTraining(communicationMode == CommunicationMode.RING);
+    }
 
-            // Create the updated R
-            FinishMatrixFactorization();
-        } else {
-            System.out.println("No trained data found to load!. Waiting for master connections...");
+    /**
+     * Runs the next step of the training, after the newcomers got the
+     * matrices. The master holds the factors the workers hold, except
+     * in the ring mode, where a worker sends them back first
+     * @param isResynchronized if every worker needs the factors again, not only the newcomers
+     */
+    private void ContinueTraining(boolean isResynchronized) {
+        List<Worker> holders = new ArrayList<>(availableWorkers);
+        List<Worker> newcomers = new ArrayList<>(pendingWorkers);
+        pendingWorkers.clear();
+        availableWorkers.addAll(newcomers);
+
+        if (availableWorkers.isEmpty()) {
+            System.out.println("No workers left, the training goes on when a worker joins");
+            return;
         }
 
-        localPois = ParserUtils.loadPoisFromJson();
+        if (newcomers.isEmpty() && !isResynchronized) {
+            DistributeCurrentStep();
+            return;
+        }
 
-        this.OpenServer();
-    }
+        if (communicationMode == CommunicationMode.RING && !holders.isEmpty()) {
+            resynchronizedWorkers = isResynchronized ? new ArrayList<>(availableWorkers) : newcomers;
+            AskFactors(holders.get(0));
+            return;
+        }
 
-    public void TransferMatricesToWorkers() {
-        CommunicationMessage msg = new CommunicationMessage();
-        msg.setType(MessageType.TRANSFER_MATRICES);
-        msg.setCArray(C);
-        msg.setPArray(P);
-        msg.setXArray(X);
-        msg.setYArray(Y);
+        /* Without holders, the ring starts again from the factors of the master */
+        TransferMatricesToWorkers(communicationMode == CommunicationMode.RING ? availableWorkers : newcomers);
+        DistributeCurrentStep();
+    }
 
-        SendBroadcastMessageToWorkers(msg);
+    private void AskFactors(Worker worker) {
+        CommunicationMessage askFactors = new CommunicationMessage();
+        askFactors.setType(MessageType.ASK_FACTORS);
+        SendToWorker(askFactors, worker);
     }
 
-    public void DistributeXMatrixToWorkers() {
-        HashMap<String, Integer[]> workerIndexes = SplitMatrix(Y, "Y");
+    /**
+     * Sends an object message to a worker
+     * @return false if the worker could not be reached, it is removed on the next check
+     */
+    private boolean SendToWorker(CommunicationMessage message, Worker worker) {
+        if (this.SendCommunicationMessage(message, worker.getIp(), worker.getPort())) return true;
 
-        /* Send the messages parallel so the workers can be able to start at the same time */
-        availableWorkers.parallelStream().forEach(worker -> {
-            CommunicationMessage xMessage = new CommunicationMessage();
-            xMessage.setType(MessageType.CALCULATE_Y);
-            xMessage.setXArray(X);
-            xMessage.setStartIndex(workerIndexes.get(worker.getName())[0]);
-            xMessage.setEndIndex(workerIndexes.get(worker.getName())[1]);
-            this.SendCommunicationMessage(xMessage, worker.getIp(), worker.getPort());
-        });
+        unreachableWorkers.add(worker.getName());
+        return false;
     }
 
-    public void DistributeYMatrixToWorkers() {
-        HashMap<String, Integer[]> workerIndexes = SplitMatrix(X, "X");
+    /**
+     * Sends a frame message to a worker
+     * @return the bytes on the wire, zero if the worker could not be reached
+     */
+    private long SendFrameToWorker(CommunicationMessage message, ByteBuffer[] payloads, Worker worker) {
+        long bytes = this.SendFrameMessage(message, payloads, worker.getIp(), worker.getPort());
+        if (bytes >= 0) return bytes;
 
-        /* Send the messages parallel so the workers can be able to start at the same time */
-        availableWorkers.parallelStream().forEach(worker -> {
-            CommunicationMessage xMessage = new CommunicationMessage();
-            xMessage.setType(MessageType.CALCULATE_X);
-            xMessage.setYArray(Y);
-            xMessage.setStartIndex(workerIndexes.get(worker.getName())[0]);
-            xMessage.setEndIndex(workerIndexes.get(worker.getName())[1]);
-            this.SendCommunicationMessage(xMessage, worker.getIp(), worker.getPort());
-        });
+        unreachableWorkers.add(worker.getName());
+        return 0;
     }
 
-    public void SendBroadcastMessageToWorkers(CommunicationMessage message) {
-        /* Send the messages parallel so the workers can be able to start at the same time */
-        availableWorkers.parallelStream().forEach(worker ->
-                this.SendCommunicationMessage(message, worker.getIp(), worker.getPort()));
-    }
+    /**
+     * Prints the loop summary and moves to the next iteration
+     * @param error the error of the iteration that just finished
+     * @return true if the algorithm should end
+     */
+    private boolean IsIterationConverged(double error) {
+        double difference = Math.abs(error - latestError);
 
-    public double CalculateError() {
-        /* Compute the least square distance for every element */
-        INDArray temp = X.mmul(Y.transpose());
-        temp.subi(P);
-        temp.muli(temp);
-        temp.muli(C);
+        System.out.println("***********************************************");
+        System.out.println("Loop No.: " + currentIteration);
+        System.out.println("Error: " + error);
+        System.out.println("Previous Error: " + latestError);
+        System.out.println("Difference: " + difference);
+        System.out.println("Loop Elapsed Time: " +
+                ParserUtils.GetTimeInSec(loopCalculationStartTime) + "sec");
+        System.out.println("Bytes On Wire: " +
+                iterationBytesOnWire.getAndSet(0) / 1024 + "KB");
+        System.out.println("***********************************************");
 
-        /* compute the normalization */
-        INDArray normX = Nd4j.sum(X.mul(X), 0);
-        INDArray normY = Nd4j.sum(Y.mul(Y), 0);
-        INDArray norma = normX.add(normY);
-        norma.muli(L);
+        /* The lazy iterations barely move the error, only the full sweeps tell if the rows converged */
+        boolean isFullSweep = GetUpdateTolerance(currentIteration) <= 0;
+        if (isFullSweep && updateTolerance > 0) {
+            difference = Math.abs(error - latestFullSweepError) / FULL_SWEEP_PERIOD;
+        }
 
-        /* Sum all the elements of the least squares */
-        double sumPartOne = temp.sumNumber().doubleValue();
+        /* If we reached our limit of the difference or the iterations, end the algorithm */
+        if ((difference < MIN_DIFFERENCE && isFullSweep) || currentIteration - trainingStartIteration >= MAX_ITERATIONS) {
+            return true;
+        }
 
-        /* Compute the normalization for every element */
-        double sumPartTwo = norma.sumNumber().doubleValue();
+        latestError = error;
+        if (isFullSweep) {
+            latestFullSweepError = error;
+        }
+        currentIteration++;
+        currentGeneration++;
 
-        /* Return Error + norma */
-        return sumPartOne + sumPartTwo;
+        return false;
     }
 
-    public double CalculateScore(int x, int y) {
-        return 0;
+    /**
+     * Starts the factors from random values, or, when warm starting, from
+     * the factors of the previous training, which are loaded from the
+     * saved files on startup. Users and POIs that are new to the dataset
+     * must be appended to it, their rows start random. A retrain after
+     * small changes of the dataset then needs only a few iterations
+     * @param K the number of the factors
+     * @param isWarm if the training starts from the factors in memory
+     */
+    private void InitializeFactors(int K, boolean isWarm) {
+        boolean isSavedUsable = X != null && Y != null &&
+                X.rows() <= R.rows() &&
+                Y.rows() <= R.columns();
+
+        if (!isWarm || !isSavedUsable) {
+            if (isWarm) {
+                System.out.println("No previous factors fit the dataset, starting from random factors");
+            }
+
+            X = MatrixHelpers.GenerateRandomMatrix(R, K, false, randomSeed);
+            Y = MatrixHelpers.GenerateRandomMatrix(R, K, true, randomSeed);
+            return;
+        }
+
+        System.out.println("Warm start from the previous factors with " +
+                (R.rows() - X.rows()) + " new users and " +
+                (R.columns() - Y.rows()) + " new POIs");
+
+        X = MatrixHelpers.ExtendRandomMatrix(X, R, K, false, randomSeed);
+        Y = MatrixHelpers.ExtendRandomMatrix(Y, R, K, true, randomSeed);
     }
 
-    public List<Poi> CalculateBestLocalPOIsForUser(int user, int radius, double userLat, double userLng) {
-        List<Poi> recommendedPOIs = new LinkedList<>();
+    private void FinishMatrixFactorization() {
+        isTraining = false;
 
-        INDArray pois = RUpdated.getRow(user);
+        System.out.println("**************************************");
+        System.out.println("Writing to " + NEW_X_PATH + ", " + NEW_Y_PATH + "newY.txt");
 
-        double previousMax = Double.MAX_VALUE;
-        for (int poi = 0; poi < pois.columns(); poi++) {
-            int currentMaxIndex = getMax(pois, previousMax, user);
-            previousMax = pois.getDouble(0, currentMaxIndex);
+        /* Write the X and Y Matrices */
+        Nd4j.writeTxt(X, NEW_X_PATH);
+        Nd4j.writeTxt(Y, NEW_Y_PATH);
 
-            /* Creates a new poi with that id */
-            recommendedPOIs.add(localPois.get(String.valueOf(currentMaxIndex)));
-        }
+        long startTime = System.nanoTime();
 
-        /* Filter null values */
-        recommendedPOIs = recommendedPOIs
-                .parallelStream()
-                .filter(Objects::nonNull)
-                .collect(Collectors.toList());
+        /* Calculate the new R table, the previous model is served until it is published */
+        INDArray scores = X.mmul(Y.transpose());
 
-        /* Calculate distances (User -> POI) for each poi */
-        recommendedPOIs
-                .parallelStream()
-                .forEach(p -> p.setDistance((int) CalculateDistance(
-                        userLat,
-                        userLng,
-                        p.getLatitude(),
-                        p.getLongitude())));
-
-        /* Got only pois inside the radius */
-        recommendedPOIs = recommendedPOIs
-                .parallelStream()
-                .filter(p -> p.getDistance()/1000 <= radius)
-                .collect(Collectors.toList());
+        System.out.println("New R Calculated in: " + ParserUtils.GetTimeInSec(startTime) + "sec");
+        System.out.println("**************************************");
 
-        /* Sort ascending base on poi's distance from user */
-        recommendedPOIs.sort(Comparator.comparingInt(Poi::getDistance));
+        /* The grams of the previous factors are stale, and the check ins of the training wait */
+        synchronized (this) {
+            foldInXGram = null;
+            foldInYGram = null;
+            foldInXInverse = null;
+            foldInYInverse = null;
+            VisitedSets visited = VisitedSets.Update(null, interactionStore, new int[0]);
+            servedScores = scores;
+            PublishModel(null, Y.dup(), scores, visited, IntStream.range(0, scores.rows()).toArray(), new int[0]);
+            if (!pendingInteractions.isEmpty()) {
+                FoldInInteractions();
+            }
 
-        return recommendedPOIs;
+            if (sessionBenchmarkSize > 0) {
+                BenchmarkSessionRecommendations(sessionBenchmarkSize, BENCHMARK_SESSION_POIS);
+            }
+        }
     }
 
-    public double CalculateDistance(double userLat, double userLon, double poiLat, double poiLon){
+    /**
+     * Ingests new check ins. They update the interactions and the rows of
+     * the users they touch are solved again against the fixed Y, like the
+     * workers solve them, so the recommendations change right away without
+     * a training. While a training runs its factors are not final, so the
+     * check ins wait for it to finish
+     * @param interactions the new check ins
+     */
+    public synchronized void IngestInteractions(List<Interaction> interactions) {
+        if (interactions == null) return;
+
+        List<Interaction> validInteractions = interactions
+                .stream()
+                .filter(interaction -> interaction.getUser() >= 0 &&
+                        interaction.getPoi() >= 0 &&
+                        interaction.getCount() > 0)
+                .collect(Collectors.toList());
+
+        /* Logged first, a check in the master acknowledged survives a restart */
+        try {
+            interactionLog.Append(validInteractions);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        pendingInteractions.addAll(validInteractions);
+        eventsSinceTraining += validInteractions.stream().mapToLong(Interaction::getCount).sum();
+
+        if (!isTraining) {
+            FoldInInteractions();
+        }
+    }
+
+    /**
+     * Adds the pending check ins to the dataset and solves the rows of
+     * their users, and of their POIs when enabled, against the factors
+     * that are served. New users and POIs are appended to the matrices,
+     * new POIs are always solved since they have no factors yet. Only the
+     * solved rows and columns of the scores are written, the Y is copied
+     * for the readers only when a POI is solved, only the solved users
+     * select their candidates again, and the rest move the solved POIs in
+     * their lists. On the 765 users and 1964 POIs of the dataset a check in
+     * of a known user takes about 20ms, and every other user of the same
+     * batch about 1ms more, since they share the inverse of the gram of Y.
+     * Solving its POI too takes about 100ms, the gram of X is inverted again
+     * and the users whose lists the POI leaves select theirs again. A new
+     * user or POI grows the dense matrices, 0.1 to 0.2s, so check ins are
+     * best ingested in batches
+     */
+    private void FoldInInteractions() {
+        long startTime = System.nanoTime();
+
+        Set<Integer> users = new TreeSet<>();
+        Set<Integer> pois = new TreeSet<>();
+        int knownPois = R.columns();
+
+        /* Add them to the dataset, the next training includes them */
+        List<double[]> cells = new ArrayList<>();
+        for (Interaction interaction : pendingInteractions) {
+            double count = interactionStore.Add(interaction.getUser(), interaction.getPoi(), interaction.getCount());
+            cells.add(new double[]{interaction.getUser(), interaction.getPoi(), count});
+            users.add(interaction.getUser());
+            pois.add(interaction.getPoi());
+
+            if (poiCheckIns.length <= interaction.getPoi()) {
+                poiCheckIns = Arrays.copyOf(poiCheckIns, interactionStore.getPois());
+            }
+            poiCheckIns[interaction.getPoi()] += interaction.getCount();
+        }
+        pendingInteractions.clear();
+
+        R = GrowMatrix(R, interactionStore.getUsers(), interactionStore.getPois());
+        for (double[] cell : cells) {
+            R.putScalar((int) cell[0], (int) cell[1], cell[2]);
+        }
+        if (!cells.isEmpty()) BuildPopularityFallback();
+
+        /* Nothing is trained yet to fold them in */
+        ServingModel model = servedModel;
+        if (model == null) return;
+
+        int[] solvedPois = pois
+                .stream()
+                .filter(poi -> isFoldingInPois || poi >= knownPois)
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        /* The X and the scores are not served, the served Y is not written under the requests */
+        X = GrowMatrix(X, R.rows(), X.columns());
+        servedScores = GrowMatrix(servedScores, R.rows(), R.columns());
+        if (solvedPois.length > 0) {
+            Y = Y.rows() < R.columns() ? GrowMatrix(Y, R.columns(), Y.columns()) : Y.dup();
+        }
+        VisitedSets visited = VisitedSets.Update(model.getVisited(), interactionStore,
+                users.stream().mapToInt(Integer::intValue).toArray());
+
+        for (int user : users) {
+            FoldInRow(user, false, servedScores);
+        }
+        for (int poi : solvedPois) {
+            FoldInRow(poi, true, servedScores);
+        }
+
+        /* The POIs the previous model does not have are new to every list, solved or not */
+        int[] changedPois = IntStream.concat(Arrays.stream(solvedPois), IntStream.range(model.getPois(), R.columns()))
+                .distinct()
+                .sorted()
+                .toArray();
+        PublishModel(model, Y, servedScores, visited, users.stream().mapToInt(Integer::intValue).toArray(), changedPois);
+
+        System.out.println("Folded in " + cells.size() + " check ins, solved " + users.size() +
+                " users and " + solvedPois.length + " POIs in " + ParserUtils.GetTimeInSec(startTime) + "sec");
+    }
+
+    /**
+     * Solves a row of X or Y against the other, with the same solve as
+     * the workers, and updates the gram of the factor and the served
+     * scores of the row. A row with fewer interactions than factors is
+     * solved from the inverse of the regularized gram, which is calculated
+     * once until the fixed factor changes, instead of inverting a K x K
+     * matrix for every row
+     * @param row the user or the poi
+     * @param isY if the row is of the Y or the X
+     * @param scores the scores of the model that is being folded
+     */
+    private void FoldInRow(int row, boolean isY, INDArray scores) {
+        INDArray fixedFactor = isY ? X : Y;
+        int[] interactions = isY ? interactionStore.GetPoiUsers(row) : interactionStore.GetUserPois(row);
+        double[] counts = isY ? interactionStore.GetPoiCounts(row) : interactionStore.GetUserCounts(row);
+
+        /* Cu = 1 + ALPHA * R */
+        double[] confidences = new double[counts.length];
+        for (int i = 0; i < counts.length; i++) confidences[i] = 1 + MatrixHelpers.ALPHA * counts[i];
+
+        INDArray newRow = interactions.length < fixedFactor.columns() ?
+                MatrixHelpers.SolveFactorRowFromInverse(fixedFactor, interactions, confidences, GetFoldInInverse(isY)) :
+                MatrixHelpers.SolveFactorRow(fixedFactor, interactions, confidences, GetFoldInGram(isY), L);
+        INDArray factor = isY ? Y : X;
+        INDArray oldRow = factor.getRow(row).dup();
+        factor.putRow(row, newRow);
+
+        /* The gram of the solved factor moves by the change of the row, its inverse is stale */
+        INDArray gram = isY ? foldInYGram : foldInXGram;
+        if (gram != null) {
+            gram.addi(newRow.transpose().mmul(newRow)).subi(oldRow.transpose().mmul(oldRow));
+        }
+        if (isY) {
+            foldInYInverse = null;
+        } else {
+            foldInXInverse = null;
+        }
+
+        if (isY) {
+            scores.putColumn(row, X.mmul(newRow.transpose()));
+        } else {
+            scores.putRow(row, newRow.mmul(Y.transpose()));
+        }
+    }
+
+    /**
+     * @param isX if the gram is of the X or the Y
+     * @return the gram of the served factor, calculated once per training
+     */
+    private INDArray GetFoldInGram(boolean isX) {
+        if (isX) {
+            if (foldInXGram == null) foldInXGram = X.transpose().mmul(X);
+            return foldInXGram;
+        }
+
+        if (foldInYGram == null) foldInYGram = Y.transpose().mmul(Y);
+        return foldInYGram;
+    }
+
+    /**
+     * @param isX if the inverse is of the gram of the X or the Y
+     * @return the inverse of the gram of the served factor plus λI, calculated again after a row of the factor is solved
+     */
+    private INDArray GetFoldInInverse(boolean isX) {
+        if (isX) {
+            if (foldInXInverse == null) foldInXInverse = InvertRegularizedGram(GetFoldInGram(true));
+            return foldInXInverse;
+        }
+
+        if (foldInYInverse == null) foldInYInverse = InvertRegularizedGram(GetFoldInGram(false));
+        return foldInYInverse;
+    }
+
+    private static INDArray InvertRegularizedGram(INDArray gram) {
+        return InvertMatrix.invert(gram.add(Nd4j.eye(gram.rows()).mul(L)), false);
+    }
+
+    /**
+     * Publishes a new version of the model, the requests that arrive from
+     * now on are answered from it. The best unvisited POIs of the users are
+     * selected with it, in parallel, of the whole catalog and of every category
+     * of the catalog, so that a request of a known user only filters them by
+     * distance. A category that got POIs which did not change their scores
+     * since the previous model selects the candidates of every user again
+     * @param previous the model the new one is folded from, null to select the candidates of every user
+     * @param Y the Y of the model, it must not be written once published
+     * @param scores the scores of every user for every POI, read only while the model is published
+     * @param users the users whose scores changed, their candidates are selected again
+     * @param changedPois the POIs whose scores changed, the rest of the users move them in their candidates
+     */
+    private void PublishModel(ServingModel previous, INDArray Y, INDArray scores, VisitedSets visited,
+                              int[] users, int[] changedPois) {
+        long startTime = System.nanoTime();
+
+        /* The sets of POIs to select from: the whole catalog first, then the categories that have POIs */
+        List<Poi.POICategoryID> categoryIds = new ArrayList<>();
+        List<int[]> catalogPois = new ArrayList<>();
+        List<CandidateLists> previousLists = new ArrayList<>();
+        catalogPois.add(null);
+        previousLists.add(previous == null ? null : previous.getCandidates());
+
+        for (Poi.POICategoryID category : Poi.POICategoryID.values()) {
+            int[] categoryPois = poiCatalog == null ? new int[0] : poiCatalog.GetCategoryPois(category, scores.columns());
+            if (categoryPois.length == 0) continue;
+
+            /* The lists move the changed POIs, so they take new POIs only if those changed */
+            CategoryIndex previousIndex = previous == null ? null : previous.GetCategory(category);
+            boolean isKnownPois = previousIndex != null && Arrays.stream(categoryPois).allMatch(poi ->
+                    Arrays.binarySearch(previousIndex.getPois(), poi) >= 0 || Arrays.binarySearch(changedPois, poi) >= 0);
+
+            categoryIds.add(category);
+            catalogPois.add(categoryPois);
+            previousLists.add(isKnownPois ? previousIndex.getCandidates() : null);
+        }
+
+        CandidateLists[] lists = CandidateLists.Update(previousLists.toArray(new CandidateLists[0]),
+                scores, visited, users, changedPois, candidatesPerUser, catalogPois.toArray(new int[0][]));
+
+        Map<Poi.POICategoryID, CategoryIndex> categories = new EnumMap<>(Poi.POICategoryID.class);
+        for (int i = 0; i < categoryIds.size(); i++) {
+            int[] categoryPois = catalogPois.get(i + 1);
+            CategoryIndex previousIndex = previous == null ? null : previous.GetCategory(categoryIds.get(i));
+            categories.put(categoryIds.get(i), new CategoryIndex(categoryPois, lists[i + 1],
+                    GetCategoryY(previousIndex, Y, categoryPois, changedPois)));
+        }
+
+        System.out.println("Candidates of " + users.length + " users selected in " +
+                ParserUtils.GetTimeInSec(startTime) + "sec");
+
+        servedModel = new ServingModel(++modelVersion, Y, visited, lists[0], categories);
+        System.out.println("Serving model version " + modelVersion);
+    }
+
+    /**
+     * Gives the rows of the Y of the POIs of a category. The rows of the
+     * previous index are copied at once and only the rows of the changed
+     * POIs are put again, the new POIs of a category follow the previous ones
+     * @param previousIndex the index of the category in the previous model, null if there is none
+     * @param Y the Y of the model
+     * @param categoryPois the POIs of the category, in ascending order
+     * @param changedPois the POIs whose rows changed since the previous model, in ascending order
+     * @return the rows, in the order of the POIs
+     */
+    private static INDArray GetCategoryY(CategoryIndex previousIndex, INDArray Y, int[] categoryPois, int[] changedPois) {
+        int[] previousPois = previousIndex == null ? null : previousIndex.getPois();
+        if (previousPois == null ||
+                previousPois.length > categoryPois.length ||
+                !Arrays.equals(previousPois, Arrays.copyOf(categoryPois, previousPois.length))) {
+            return Y.getRows(categoryPois);
+        }
+
+        int[] places = IntStream.range(0, categoryPois.length)
+                .filter(place -> place >= previousPois.length || Arrays.binarySearch(changedPois, categoryPois[place]) >= 0)
+                .toArray();
+        if (places.length == 0) return previousIndex.getY();
+
+        INDArray categoryY = previousPois.length == categoryPois.length ?
+                previousIndex.getY().dup() :
+                GrowMatrix(previousIndex.getY(), categoryPois.length, Y.columns());
+        for (int place : places) {
+            categoryY.putRow(place, Y.getRow(categoryPois[place]));
+        }
+        return categoryY;
+    }
+
+    /**
+     * Appends zero rows and columns to a matrix
+     * @return the matrix itself if it is big enough, otherwise a bigger copy
+     */
+    private static INDArray GrowMatrix(INDArray matrix, int rows, int columns) {
+        if (matrix.rows() >= rows && matrix.columns() >= columns) return matrix;
+
+        INDArray grown = Nd4j.zeros(Math.max(rows, matrix.rows()), Math.max(columns, matrix.columns()));
+        grown.put(new INDArrayIndex[]{
+                NDArrayIndex.interval(0, matrix.rows()),
+                NDArrayIndex.interval(0, matrix.columns())}, matrix);
+        return grown;
+    }
+
+    /**
+     * IMaster Implementation
+     */
+    public void Initialize() {
+        /* Starting values and initializations */
+        currentIteration = 0;
+        currentGeneration = 0;
+        latestError = Double.MAX_VALUE - 1;
+        latestFullSweepError = Double.MAX_VALUE - 1;
+
+        availableWorkers = new CopyOnWriteArrayList<>();
+
+        iterationMessages = new ArrayList<>();
+
+        xExecutionTimes = new HashMap<>();
+        yExecutionTimes = new HashMap<>();
+        latestWorkersXDistribution = new HashMap<>();
+        latestWorkersYDistribution = new HashMap<>();
+
+        /* Read the DataSet, the compacted binary one when it exists */
+        R = Files.exists(Paths.get(BINARY_DATASET_PATH)) ?
+                ParserUtils.LoadBinaryDataSet(BINARY_DATASET_PATH) :
+                ParserUtils.LoadDataSet(DATASET_PATH);
+        if (R == null) {
+            System.out.println("Wrong DataSet! Please contact with the Developers!");
+            return;
+        }
+
+        interactionStore = new InteractionStore(R);
+
+        /* Init C and P */
+        C = Nd4j.zeros(R.rows(), R.columns());
+        P = Nd4j.zeros(R.rows(), R.columns());
+
+        /* The POIs come first, a loaded model serves them as soon as its R is calculated */
+        Map<String, Poi> localPois = ParserUtils.loadPoisFromJson();
+        if (localPois != null) poiCatalog = new PoiCatalog(localPois);
+        poiCheckIns = R.sum(0).dup().data().asDouble();
+        BuildPopularityFallback();
+
+        /* The check ins of the log that are not in the dataset are folded in like new ones */
+        try {
+            interactionLog = new InteractionLog(Paths.get(LOG_DIRECTORY),
+                    ParserUtils.ReadCompactedSegment(BINARY_DATASET_PATH), LOG_SEGMENT_RECORDS);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        pendingInteractions.addAll(interactionLog.GetTail());
+        eventsSinceTraining = interactionLog.getTailEvents();
+        if (!pendingInteractions.isEmpty()) {
+            System.out.println("Replaying " + eventsSinceTraining + " check ins of the log");
+        }
+
+        /* If the newX and the newY are existing, calculate the new R */
+        Path newXFile = Paths.get(NEW_X_PATH);
+        Path newYFile = Paths.get(NEW_Y_PATH);
+        if (Files.exists(newXFile) && Files.exists(newYFile)) {
+            X = Nd4j.readTxt(NEW_X_PATH);
+            Y = Nd4j.readTxt(NEW_Y_PATH);
+            System.out.println("**************************************");
+            System.out.println("Loading to " + NEW_X_PATH + ", " + NEW_Y_PATH + "newY.txt");
+            System.out.println("**************************************");
+
+            // Create the updated R
+            FinishMatrixFactorization();
+        } else {
+            System.out.println("No trained data found to load!. Waiting for master connections...");
+            FoldInInteractions();
+        }
+
+        StartMonitor();
+        StartRetrainScheduler();
+        this.OpenServer();
+    }
+
+    public void TransferMatricesToWorkers() {
+        CommunicationMessage msg = new CommunicationMessage();
+        msg.setType(MessageType.TRANSFER_MATRICES);
+        msg.setCArray(C);
+        msg.setPArray(P);
+        msg.setXArray(X);
+        msg.setYArray(Y);
+
+        SendBroadcastMessageToWorkers(msg);
+
+        xReference = IsFactorEncoded() ? X.dup() : null;
+        yReference = IsFactorEncoded() ? Y.dup() : null;
+    }
+
+    /**
+     * @return if the factors go out quantized or as deltas, which decode
+     * against the references the master keeps of what the workers hold
+     */
+    private boolean IsFactorEncoded() {
+        return factorEncoding != FactorEncoding.RAW || deltaThreshold > 0;
+    }
+
+    /**
+     * Sends the matrices to some of the workers during the training. In
+     * the master mode they get the factors the rest workers hold, so
+     * the encoded factors of the next half step decode the same for all
+     * @param workers the workers to send the matrices to
+     */
+    private void TransferMatricesToWorkers(List<Worker> workers) {
+        boolean isReferenceSent = communicationMode == CommunicationMode.MASTER;
+
+        CommunicationMessage msg = new CommunicationMessage();
+        msg.setType(MessageType.TRANSFER_MATRICES);
+        msg.setCArray(C);
+        msg.setPArray(P);
+        msg.setXArray(isReferenceSent && xReference != null ? xReference : X);
+        msg.setYArray(isReferenceSent && yReference != null ? yReference : Y);
+
+        SendBroadcastMessageToWorkers(msg, null, workers);
+    }
+
+    public void DistributeXMatrixToWorkers() {
+        CommunicationMessage xMessage = new CommunicationMessage();
+        xMessage.setType(MessageType.CALCULATE_Y);
+        xMessage.setIteration(currentGeneration);
+        SetBroadcastFactor(xMessage, true);
+
+        HashMap<String, Integer[]> workerIndexes = GetWorkerIndexes(Y, "Y", xMessage);
+        yAssembly = new FactorAssembly(currentGeneration, Y.rows(), Y.columns(), true);
+
+        SendBroadcastMessageToWorkers(xMessage, workerIndexes);
+    }
+
+    public void DistributeYMatrixToWorkers() {
+        CommunicationMessage yMessage = new CommunicationMessage();
+        yMessage.setType(MessageType.CALCULATE_X);
+        yMessage.setIteration(currentGeneration);
+        SetBroadcastFactor(yMessage, false);
+
+        HashMap<String, Integer[]> workerIndexes = GetWorkerIndexes(X, "X", yMessage);
+        xAssembly = new FactorAssembly(currentGeneration, X.rows(), X.columns(), true);
+
+        SendBroadcastMessageToWorkers(yMessage, workerIndexes);
+    }
+
+    /**
+     * Gives the rows of the half step to the workers. With the work queue
+     * every worker gets only its first chunk along with the factor, and
+     * pulls the next one by returning its result
+     * @param matrix the matrix that is calculated
+     * @param matrixName the name of the matrix
+     * @param message the CALCULATE message of the half step
+     * @return the start and end index of each worker
+     */
+    private HashMap<String, Integer[]> GetWorkerIndexes(INDArray matrix, String matrixName, CommunicationMessage message) {
+        if (communicationMode != CommunicationMode.MASTER || schedulingMode != SchedulingMode.WORK_QUEUE) {
+            HashMap<String, Integer[]> workerIndexes = SplitMatrix(matrix, matrixName);
+
+            /* Static ranges get deadlines from their predicted times */
+            if (communicationMode == CommunicationMode.MASTER) {
+                ThroughputPartitioner partitioner = matrixName.equals("X") ? xPartitioner : yPartitioner;
+                HashMap<String, Double> predictedTimes = new HashMap<>();
+                for (Worker worker : availableWorkers) {
+                    Double predictedTime = partitioner.getPredictedTime(worker.getName());
+                    if (predictedTime != null) predictedTimes.put(worker.getName(), predictedTime);
+                }
+
+                halfStepMessage = message;
+                speculationTracker = new SpeculationTracker(currentGeneration, workerIndexes, predictedTimes);
+            }
+            return workerIndexes;
+        }
+
+        chunkScheduler = new ChunkScheduler(currentGeneration, matrix.rows(), SCHEDULER_CHUNK_ROWS);
+        halfStepMessage = message;
+
+        HashMap<String, Integer[]> workerIndexes = new HashMap<>();
+        for (Worker worker : availableWorkers) {
+            int[] chunk = chunkScheduler.NextChunk(worker.getName());
+
+            /* A worker without a chunk gets only the factor */
+            workerIndexes.put(worker.getName(), chunk != null ?
+                    new Integer[]{chunk[0], chunk[1]} :
+                    new Integer[]{0, -1});
+        }
+        return workerIndexes;
+    }
+
+    /**
+     * Gives the next chunk to the worker that returned its result, and
+     * lets the idle workers take over the chunks that run too long
+     * @param message the X_CALCULATED or Y_CALCULATED message of the worker
+     * @param isFinished false for a duplicate result, whose chunk already finished
+     */
+    private void AssignNextChunk(CommunicationMessage message, boolean isFinished) {
+        ChunkScheduler scheduler = chunkScheduler;
+        if (scheduler == null || scheduler.getIteration() != message.getIteration()) return;
+
+        if (isFinished) scheduler.ChunkFinished(message.getStartIndex());
+
+        int[] chunk = scheduler.NextChunk(message.getServerName());
+        if (chunk != null) {
+            SendChunk(message.getServerName(), chunk);
+        }
+
+        scheduler.ReassignStalledChunks().forEach(reassignment ->
+                SendChunk(reassignment.getKey(), reassignment.getValue()));
+    }
+
+    /**
+     * Sends a chunk of the running half step, without the factor the worker already holds
+     * @param workerName the name of the worker
+     * @param chunk the start and end index of the chunk
+     */
+    private void SendChunk(String workerName, int[] chunk) {
+        CommunicationMessage chunkMessage = new CommunicationMessage();
+        chunkMessage.setType(halfStepMessage.getType());
+        chunkMessage.setIteration(halfStepMessage.getIteration());
+        chunkMessage.setFactorEncoding(halfStepMessage.getFactorEncoding());
+        chunkMessage.setDeltaThreshold(halfStepMessage.getDeltaThreshold());
+        chunkMessage.setUpdateTolerance(halfStepMessage.getUpdateTolerance());
+        chunkMessage.setStartIndex(chunk[0]);
+        chunkMessage.setEndIndex(chunk[1]);
+
+        availableWorkers
+                .stream()
+                .filter(worker -> worker.getName().equals(workerName))
+                .findFirst()
+                .ifPresent(worker -> SendToWorker(chunkMessage, worker));
+    }
+
+    /**
+     * Checks periodically for dead workers, and for chunks and ranges that
+     * run too long, since an idle worker only asks once and a stalled
+     * worker may never answer
+     */
+    private void StartMonitor() {
+        monitor = Executors.newSingleThreadScheduledExecutor();
+        monitor.scheduleAtFixedRate(() -> {
+            synchronized (this) {
+                try {
+                    /* A worker is dead when it stops sending heartbeats or a message can not reach it */
+                    long now = System.nanoTime();
+                    for (Worker worker : availableWorkers) {
+                        Long lastHeartbeat = lastHeartbeats.get(worker.getName());
+                        if (unreachableWorkers.contains(worker.getName())) {
+                            RemoveWorker(worker.getName(), "it can not be reached");
+                        } else if (lastHeartbeat != null &&
+                                now - lastHeartbeat > TimeUnit.MILLISECONDS.toNanos(FAILURE_TIMEOUT_MS)) {
+                            RemoveWorker(worker.getName(), "no heartbeat for " + FAILURE_TIMEOUT_MS + "ms");
+                        }
+                    }
+
+                    if (communicationMode != CommunicationMode.MASTER) return;
+
+                    ChunkScheduler scheduler = chunkScheduler;
+                    if (scheduler != null && schedulingMode == SchedulingMode.WORK_QUEUE) {
+                        scheduler.ReassignStalledChunks().forEach(reassignment ->
+                                SendChunk(reassignment.getKey(), reassignment.getValue()));
+                    }
+
+                    SpeculationTracker tracker = speculationTracker;
+                    if (tracker != null && schedulingMode == SchedulingMode.STATIC) {
+                        tracker.FindSpeculations().forEach(speculation ->
+                                SendChunk(speculation.getKey(), speculation.getValue()));
+                    }
+                } catch (RuntimeException e) {
+                    /* An exception would cancel the next checks */
+                    e.printStackTrace();
+                }
+            }
+        }, STALL_CHECK_PERIOD_MS, STALL_CHECK_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks the log periodically. Its sealed segments are compacted into the
+     * dataset, and when enough check ins arrived since the latest training a
+     * retrain starts from the served factors. The served model answers until
+     * the retrain finishes
+     */
+    private void StartRetrainScheduler() {
+        retrainScheduler = Executors.newSingleThreadScheduledExecutor();
+        retrainScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                boolean isRetrainDue;
+                synchronized (this) {
+                    isRetrainDue = IsRetrainDue();
+                }
+
+                /* Compaction only touches the files, the master keeps serving meanwhile */
+                if (isRetrainDue || interactionLog.getSealedSegments() >= COMPACTION_SEGMENTS) {
+                    CompactInteractionLog();
+                }
+
+                synchronized (this) {
+                    if (isRetrainDue && IsRetrainDue()) {
+                        StartRetraining();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                /* An exception would cancel the next checks */
+                e.printStackTrace();
+            }
+        }, RETRAIN_CHECK_PERIOD_MS, RETRAIN_CHECK_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean IsRetrainDue() {
+        return retrainThreshold > 0 &&
+                isTrainingStarted &&
+                !isTraining &&
+                !availableWorkers.isEmpty() &&
+                eventsSinceTraining >= retrainThreshold;
+    }
+
+    /**
+     * Writes the sealed segments of the log into the binary dataset, with the
+     * last of them, so that a restart between the write and the deletion of
+     * the segments does not count them twice. The dataset of the master holds
+     * every check in of the log but the pending ones, so it is copied the
+     * moment the log is sealed, with the pending ones added, instead of
+     * loading the dataset again. The dataset is still dense in memory and
+     * the file is still rewritten whole
+     */
+    private void CompactInteractionLog() throws IOException {
+        long startTime = System.nanoTime();
+
+        long segment;
+        INDArray dataSet;
+        List<Interaction> interactions;
+        synchronized (this) {
+            segment = interactionLog.Seal();
+            if (interactionLog.getSealedSegments() == 0) return;
+
+            dataSet = R.dup();
+            interactions = new ArrayList<>(pendingInteractions);
+        }
+
+        int users = interactions.stream().mapToInt(Interaction::getUser).max().orElse(0) + 1;
+        int pois = interactions.stream().mapToInt(Interaction::getPoi).max().orElse(0) + 1;
+        dataSet = GrowMatrix(dataSet, users, pois);
+        for (Interaction interaction : interactions) {
+            dataSet.putScalar(interaction.getUser(), interaction.getPoi(),
+                    dataSet.getDouble(interaction.getUser(), interaction.getPoi()) + interaction.getCount());
+        }
+
+        ParserUtils.WriteBinaryDataSet(BINARY_DATASET_PATH, dataSet, segment);
+        interactionLog.Remove(segment);
+
+        System.out.println("Compacted the log through segment " + segment + " with " + interactions.size() +
+                " pending check ins in " + ParserUtils.GetTimeInSec(startTime) + "sec");
+    }
+
+    /**
+     * Starts a training on the dataset with the check ins folded in so far,
+     * from the served factors. The iterations continue the numbering of the
+     * previous training, so nothing of it in flight is taken for the new one
+     */
+    private void StartRetraining() {
+        System.out.println("Retraining with " + eventsSinceTraining + " new check ins");
+
+        eventsSinceTraining = 0;
+        currentIteration++;
+        currentGeneration++;
+        trainingStartIteration = currentIteration;
+        latestError = Double.MAX_VALUE - 1;
+        latestFullSweepError = Double.MAX_VALUE - 1;
+        iterationMessages.clear();
+        xAssembly = null;
+        yAssembly = null;
+        xGram = null;
+        yGram = null;
+
+        StartMatrixFactorization(true);
+    }
+
+    /**
+     * Checks if the result is of the range its worker was given, so that
+     * its execution time measures the worker and not a speculated range
+     */
+    private boolean IsOwnRange(CommunicationMessage message) {
+        SpeculationTracker tracker = speculationTracker;
+        return schedulingMode != SchedulingMode.STATIC ||
+                tracker == null ||
+                tracker.IsOwnRange(message.getServerName(), message.getStartIndex());
+    }
+
+    /**
+     * Checks if no other worker returned the range first. A speculated range
+     * or a stalled chunk of a work queue is calculated twice, so its first
+     * result claims the rows
+     * @param message the X_CALCULATED or Y_CALCULATED message of the worker
+     * @param assembly the assembly of the half step of the message
+     * @return false if the result is a duplicate and must be discarded
+     */
+    private boolean IsFirstResult(CommunicationMessage message, FactorAssembly assembly) {
+        SpeculationTracker tracker = speculationTracker;
+
+        /* A slice read in place claimed its rows while it was read */
+        boolean isFirst = message.isAssembledInPlace() ||
+                assembly.Claim(message.getStartIndex(), message.getEndIndex());
+        if (schedulingMode == SchedulingMode.STATIC && tracker != null && tracker.getIteration() == message.getIteration()) {
+            tracker.RangeReceived(message.getServerName(), message.getStartIndex());
+        }
+
+        if (!isFirst) {
+            System.out.println("Discarding the duplicate range from " + message.getStartIndex() +
+                    " to " + message.getEndIndex() + " of " + message.getServerName());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Puts the factor matrix to the message. Unless a full send is due,
+     * it is encoded against the factor the workers already hold, which is
+     * then replaced by exactly what the workers are going to decode. With
+     * no encoding the master keeps no copy of what the workers hold.
+     * The summed gram goes along only with a raw factor, since it is the
+     * gram of the exact slices and not of what the workers decode
+     * @param message the message to broadcast
+     * @param isX if the factor is the X or the Y
+     */
+    private void SetBroadcastFactor(CommunicationMessage message, boolean isX) {
+        boolean isEncoded = IsFactorEncoded() &&
+                (isX ? xReference : yReference) != null &&
+                currentIteration % FULL_SEND_PERIOD != 0;
+
+        message.setFactorEncoding(isEncoded ? factorEncoding : FactorEncoding.RAW);
+        message.setDeltaThreshold(isEncoded ? deltaThreshold : 0);
+        message.setUpdateTolerance(GetUpdateTolerance(currentIteration));
+
+        if (!isEncoded) {
+            if (isX) {
+                message.setXArray(X);
+                message.setXGramArray(xGram);
+                xReference = IsFactorEncoded() ? X.dup() : null;
+            } else {
+                message.setYArray(Y);
+                message.setYGramArray(yGram);
+                yReference = IsFactorEncoded() ? Y.dup() : null;
+            }
+            return;
+        }
+
+        if (isX) {
+            EncodedMatrix encoded = FactorCodec.Encode(X, xReference, factorEncoding, deltaThreshold);
+            message.setEncodedXArray(encoded);
+            xReference = FactorCodec.Decode(encoded, xReference);
+        } else {
+            EncodedMatrix encoded = FactorCodec.Encode(Y, yReference, factorEncoding, deltaThreshold);
+            message.setEncodedYArray(encoded);
+            yReference = FactorCodec.Decode(encoded, yReference);
+        }
+    }
+
+    /**
+     * Every few iterations the workers solve every row, so the rows they
+     * skipped never drift too far from what the latest factors give
+     * @param iteration the iteration of the half step
+     * @return the tolerance of the lazy updates, zero for a full sweep
+     */
+    private double GetUpdateTolerance(int iteration) {
+        return iteration % FULL_SWEEP_PERIOD == 0 ? 0 : updateTolerance;
+    }
+
+    /**
+     * Starts an iteration of the ring mode. The workers already own the
+     * factor matrices, so only the ring and the ranges of every rank are sent
+     */
+    public void DistributeRingIteration() {
+        HashMap<String, Integer[]> xIndexes = SplitMatrix(X, "X");
+        HashMap<String, Integer[]> yIndexes = SplitMatrix(Y, "Y");
+
+        List<String> ringAddresses = availableWorkers
+                .stream()
+                .map(worker -> worker.getIp() + ":" + worker.getPort())
+                .collect(Collectors.toList());
+        int[] xRanges = GetRankRanges(xIndexes);
+        int[] yRanges = GetRankRanges(yIndexes);
+
+        IntStream.range(0, availableWorkers.size()).parallel().forEach(rank -> {
+            Worker worker = availableWorkers.get(rank);
+
+            CommunicationMessage ringMessage = new CommunicationMessage();
+            ringMessage.setType(MessageType.CALCULATE_X);
+            ringMessage.setIteration(currentGeneration);
+            ringMessage.setRingAddresses(ringAddresses);
+            ringMessage.setWorkerRank(rank);
+            ringMessage.setUpdateTolerance(GetUpdateTolerance(currentIteration));
+            ringMessage.setXIndexes(xRanges);
+            ringMessage.setYIndexes(yRanges);
+            ringMessage.setStartIndex(xRanges[2 * rank]);
+            ringMessage.setEndIndex(xRanges[2 * rank + 1]);
+
+            SendToWorker(ringMessage, worker);
+        });
+    }
+
+    /**
+     * Starts an iteration of the pipelined mode. The workers stream their
+     * rows in chunks and chain the Y half to the X half by themselves, so
+     * only the ranges of every rank and the chunk size are sent
+     */
+    public void DistributePipelinedIteration() {
+        int[] xRanges = GetRankRanges(SplitMatrix(X, "X"));
+        int[] yRanges = GetRankRanges(SplitMatrix(Y, "Y"));
+
+        xChunkTimes.clear();
+        yChunkTimes.clear();
+        xAssembly = new FactorAssembly(currentGeneration, X.rows(), X.columns());
+        yAssembly = new FactorAssembly(currentGeneration, Y.rows(), Y.columns());
+
+        IntStream.range(0, availableWorkers.size()).parallel().forEach(rank -> {
+            Worker worker = availableWorkers.get(rank);
+
+            CommunicationMessage pipelineMessage = new CommunicationMessage();
+            pipelineMessage.setType(MessageType.CALCULATE_X);
+            pipelineMessage.setIteration(currentGeneration);
+            pipelineMessage.setWorkerRank(rank);
+            pipelineMessage.setChunkRows(PIPELINE_CHUNK_ROWS);
+            pipelineMessage.setUpdateTolerance(GetUpdateTolerance(currentIteration));
+            pipelineMessage.setXIndexes(xRanges);
+            pipelineMessage.setYIndexes(yRanges);
+            pipelineMessage.setStartIndex(xRanges[2 * rank]);
+            pipelineMessage.setEndIndex(xRanges[2 * rank + 1]);
+
+            SendToWorker(pipelineMessage, worker);
+        });
+    }
+
+    /**
+     * Starts the bounded staleness mode. The rows are split once, then
+     * every worker runs its half steps on its own, paced only by the
+     * staleness bound, until the workers change
+     */
+    private void DistributeStaleIteration() {
+        stalenessClock = new StalenessClock(staleness, currentGeneration, SplitMatrix(X, "X"), SplitMatrix(Y, "Y"));
+
+        availableWorkers.forEach(worker -> StartStaleHalfStep(worker.getName()));
+    }
+
+    /**
+     * Sends the latest fixed factor of the master to a worker along with
+     * its rows, unless the worker is too far ahead of the slowest one
+     * @param workerName the name of the worker
+     */
+    private void StartStaleHalfStep(String workerName) {
+        StalenessClock clock = stalenessClock;
+        if (!clock.TryStart(workerName)) return;
+
+        boolean isX = clock.IsRunningX(workerName);
+        Integer[] range = clock.GetRange(workerName);
+
+        CommunicationMessage message = new CommunicationMessage();
+        message.setType(isX ? MessageType.CALCULATE_X : MessageType.CALCULATE_Y);
+        message.setIteration(clock.getClock(workerName));
+        /* The clocks count in generations, the restarts are taken off for the phase of the iteration */
+        message.setUpdateTolerance(GetUpdateTolerance(clock.getClock(workerName) / 2 - (currentGeneration - currentIteration)));
+        message.setStartIndex(range[0]);
+        message.setEndIndex(range[1]);
+        if (isX) {
+            message.setYArray(Y);
+        } else {
+            message.setXArray(X);
+        }
+
+        availableWorkers
+                .stream()
+                .filter(worker -> worker.getName().equals(workerName))
+                .findFirst()
+                .ifPresent(worker -> iterationBytesOnWire.addAndGet(
+                        SendFrameToWorker(message, FrameUtils.EncodePayloads(message), worker)));
+    }
+
+    /**
+     * Bounded staleness mode: places the rows of a worker to the factors
+     * of the master right away and gives the worker its next half step.
+     * An iteration ends every time the slowest worker finishes one
+     * @param message the X_CALCULATED or Y_CALCULATED message of the worker
+     * @param isX if the rows are of the X
+     */
+    private void HandleStaleResult(CommunicationMessage message, boolean isX) {
+        StalenessClock clock = stalenessClock;
+        String workerName = message.getServerName();
+        if (clock == null || !clock.IsExpected(workerName, message.getIteration(), message.getStartIndex())) {
+            return;
+        }
+
+        (isX ? X : Y).put(new INDArrayIndex[]{
+                NDArrayIndex.interval(message.getStartIndex(), message.getEndIndex() + 1),
+                NDArrayIndex.all()}, isX ? message.getXArray() : message.getYArray());
+
+        if (clock.Tick(workerName)) {
+            System.out.println("Worker Clocks: " + clock.getClocks());
+
+            if (IsIterationConverged(CalculateError())) {
+                stalenessClock = null;
+                FinishMatrixFactorization();
+                return;
+            }
+            loopCalculationStartTime = System.nanoTime();
+
+            /* Newcomers get their rows when the slowest worker ends an iteration */
+            if (!pendingWorkers.isEmpty()) {
+                ContinueTraining(false);
+                return;
+            }
+        }
+
+        /* The slowest worker may have moved, so the waiting ones may go on */
+        clock.getParkedWorkers().forEach(this::StartStaleHalfStep);
+        StartStaleHalfStep(workerName);
+    }
+
+    /**
+     * Forwards a chunk to the rest workers and places it to the matrix of
+     * the master. When the last Y chunk lands the iteration is over
+     * @param message the X_CHUNK or Y_CHUNK message of a worker
+     */
+    private void HandleChunk(CommunicationMessage message) {
+        boolean isX = message.getType() == MessageType.X_CHUNK;
+        FactorAssembly assembly = isX ? xAssembly : yAssembly;
+
+        /* Ignore chunks of an older iteration, and the chunks that were already forwarded */
+        if (assembly == null || message.getIteration() != assembly.getIteration()) return;
+        if (!message.isAssembledInPlace() && !assembly.Claim(message.getStartIndex(), message.getEndIndex())) return;
+
+        /* The rows must be in place before any worker can move on because of them */
+        if (!message.isAssembledInPlace()) {
+            assembly.PutRows(message.getStartIndex(), isX ? message.getXArray() : message.getYArray());
+        }
+        ForwardChunk(message);
+
+        synchronized (this) {
+            /* The iteration was aborted while the chunk was forwarded */
+            if (assembly != (isX ? xAssembly : yAssembly)) return;
+
+            iterationBytesOnWire.addAndGet(message.getFrameBytes());
+            (isX ? xChunkTimes : yChunkTimes).merge(message.getServerName(), message.getExecutionTime(), Double::sum);
+
+            /* The last Y chunk landed, so every X chunk did too */
+            if (!isX && assembly.MarkReceived(message.getStartIndex(), message.getEndIndex())) {
+                X = xAssembly.getMatrix();
+                Y = yAssembly.getMatrix();
+                xExecutionTimes.putAll(xChunkTimes);
+                yExecutionTimes.putAll(yChunkTimes);
+
+                if (IsIterationConverged(CalculateError())) {
+                    xAssembly = null;
+                    yAssembly = null;
+                    FinishMatrixFactorization();
+                    return;
+                }
+
+                ContinueTraining(false);
+                loopCalculationStartTime = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Sends a chunk to every worker except the one that calculated it.
+     * The rows are encoded once for all of them
+     * @param message the X_CHUNK or Y_CHUNK message of a worker
+     */
+    private void ForwardChunk(CommunicationMessage message) {
+        ByteBuffer[] payloads = FrameUtils.EncodePayloads(message);
+
+        availableWorkers
+                .parallelStream()
+                .filter(worker -> !worker.getName().equals(message.getServerName()))
+                .forEach(worker -> iterationBytesOnWire.addAndGet(
+                        SendFrameToWorker(message, payloads, worker)));
+    }
+
+    public void SendBroadcastMessageToWorkers(CommunicationMessage message) {
+        SendBroadcastMessageToWorkers(message, null, availableWorkers);
+    }
+
+    private void SendBroadcastMessageToWorkers(CommunicationMessage message, HashMap<String, Integer[]> workerIndexes) {
+        SendBroadcastMessageToWorkers(message, workerIndexes, availableWorkers);
+    }
+
+    /**
+     * Sends the same matrices to every worker. The matrices are encoded
+     * once into shared read only buffers, only the header of each
+     * worker's frame (its start and end index) is built per worker
+     * @param message the message to broadcast
+     * @param workerIndexes the indexes of each worker, or null to send the message as is
+     * @param workers the workers to send the message to
+     */
+    private void SendBroadcastMessageToWorkers(CommunicationMessage message, HashMap<String, Integer[]> workerIndexes,
+                                               List<Worker> workers) {
+        ByteBuffer[] payloads = FrameUtils.IsFrameMessage(message) ?
+                FrameUtils.EncodePayloads(message) :
+                null;
+
+        /* Send the messages parallel so the workers can be able to start at the same time */
+        workers.parallelStream().forEach(worker -> {
+            CommunicationMessage workerMessage = message;
+            if (workerIndexes != null) {
+                workerMessage = new CommunicationMessage();
+                workerMessage.setType(message.getType());
+                workerMessage.setIteration(message.getIteration());
+                workerMessage.setXArray(message.getXArray());
+                workerMessage.setYArray(message.getYArray());
+                workerMessage.setXGramArray(message.getXGramArray());
+                workerMessage.setYGramArray(message.getYGramArray());
+                workerMessage.setEncodedXArray(message.getEncodedXArray());
+                workerMessage.setEncodedYArray(message.getEncodedYArray());
+                workerMessage.setFactorEncoding(message.getFactorEncoding());
+                workerMessage.setDeltaThreshold(message.getDeltaThreshold());
+                workerMessage.setUpdateTolerance(message.getUpdateTolerance());
+                workerMessage.setStartIndex(workerIndexes.get(worker.getName())[0]);
+                workerMessage.setEndIndex(workerIndexes.get(worker.getName())[1]);
+            }
+
+            if (payloads != null) {
+                iterationBytesOnWire.addAndGet(SendFrameToWorker(workerMessage, payloads, worker));
+            } else {
+                SendToWorker(workerMessage, worker);
+            }
+        });
+    }
+
+    public double CalculateError() {
+        /* Compute the least square distance for every element */
+        INDArray temp = X.mmul(Y.transpose());
+        temp.subi(P);
+        temp.muli(temp);
+        temp.muli(C);
+
+        /* compute the normalization */
+        INDArray normX = Nd4j.sum(X.mul(X), 0);
+        INDArray normY = Nd4j.sum(Y.mul(Y), 0);
+        INDArray norma = normX.add(normY);
+        norma.muli(L);
+
+        /* Sum all the elements of the least squares */
+        double sumPartOne = temp.sumNumber().doubleValue();
+
+        /* Compute the normalization for every element */
+        double sumPartTwo = norma.sumNumber().doubleValue();
+
+        /* Return Error + norma */
+        return sumPartOne + sumPartTwo;
+    }
+
+    public double CalculateScore(int x, int y) {
+        return 0;
+    }
+
+    public List<Poi> CalculateBestLocalPOIsForUser(int user, int radius, double userLat, double userLng) {
+        ServingModel model = servedModel;
+        return model == null ?
+                new ArrayList<>() :
+                CalculateBestLocalPOIsForUser(model, user, radius, userLat, userLng, null, Integer.MAX_VALUE);
+    }
+
+    private List<Poi> CalculateBestLocalPOIsForUser(ServingModel model, int user, int radius, double userLat, double userLng,
+                                                    Set<Poi.POICategoryID> categories, int poisPerCategory) {
+        if (categories == null) {
+            return LocatePOIs(model.getCandidates().GetPois(user), radius, userLat, userLng, poisPerCategory);
+        }
+
+        return LocateCategoryPOIs(categories, category -> {
+            CategoryIndex index = model.GetCategory(category);
+            return index == null ? new int[0] : index.getCandidates().GetPois(user);
+        }, radius, userLat, userLng, poisPerCategory);
+    }
+
+    /**
+     * Recommends to a user the model does not know, like a new install, from
+     * the POIs it visited lately. Its row of X is solved at query time against
+     * the served Y, with the inverse of the gram of Y that is cached for the
+     * model, so a query only inverts a matrix of the size of its session
+     * @param sessionPois the POIs the user visited lately, a POI visited twice counts twice
+     * @param radius the radius in km
+     * @param userLat the latitude of the user
+     * @param userLng the longitude of the user
+     * @return the POIs inside the radius sorted by distance
+     */
+    public List<Poi> CalculateBestLocalPOIsForSession(List<Integer> sessionPois, int radius, double userLat, double userLng) {
+        ServingModel model = servedModel;
+        return model == null ?
+                new ArrayList<>() :
+                CalculateBestLocalPOIsForSession(model, sessionPois, radius, userLat, userLng, null, Integer.MAX_VALUE);
+    }
+
+    private List<Poi> CalculateBestLocalPOIsForSession(ServingModel model, List<Integer> sessionPois,
+                                                       int radius, double userLat, double userLng,
+                                                       Set<Poi.POICategoryID> categories, int poisPerCategory) {
+        long startTime = System.nanoTime();
+        List<Poi> recommendedPOIs = RecommendForSession(model, sessionPois, radius, userLat, userLng,
+                categories, poisPerCategory);
+
+        double elapsedTime = (System.nanoTime() - startTime) / 1e6;
+        if (elapsedTime > sessionLatencyBudget) {
+            System.out.println("Session recommendation of " + sessionPois.size() + " POIs took " +
+                    String.format("%.3f", elapsedTime) + "ms, over the budget of " + sessionLatencyBudget + "ms");
+        }
+
+        return recommendedPOIs;
+    }
+
+    private List<Poi> RecommendForSession(ServingModel model, List<Integer> sessionPois,
+                                          int radius, double userLat, double userLng,
+                                          Set<Poi.POICategoryID> categories, int poisPerCategory) {
+        INDArray Y = model.getY();
+
+        /* The latest visits only, they bound the cost of the solve */
+        List<Integer> latestPois = sessionPois.subList(Math.max(0, sessionPois.size() - MAX_SESSION_POIS), sessionPois.size());
+
+        /* The visits of every known POI */
+        TreeMap<Integer, Integer> visits = new TreeMap<>();
+        latestPois
+                .stream()
+                .filter(poi -> poi != null && poi >= 0 && poi < Y.rows())
+                .forEach(poi -> visits.merge(poi, 1, Integer::sum));
+
+        int[] interactions = visits.keySet().stream().mapToInt(Integer::intValue).toArray();
+        double[] confidences = visits.values().stream().mapToDouble(count -> 1 + MatrixHelpers.ALPHA * count).toArray();
+
+        INDArray userRow = MatrixHelpers.SolveFactorRowFromInverse(Y, interactions, confidences, model.GetGramInverse(L));
+
+        if (categories == null) {
+            double[] scores = userRow.mmul(Y.transpose()).data().asDouble();
+            return LocatePOIs(SelectSessionCandidates(scores, null, interactions), radius, userLat, userLng, poisPerCategory);
+        }
+
+        /* A category scores its own rows of Y only */
+        return LocateCategoryPOIs(categories, category -> {
+            CategoryIndex index = model.GetCategory(category);
+            if (index == null) return new int[0];
+
+            double[] scores = userRow.mmul(index.getY().transpose()).data().asDouble();
+            return SelectSessionCandidates(scores, index.getPois(), interactions);
+        }, radius, userLat, userLng, poisPerCategory);
+    }
+
+    /**
+     * The same candidates a known user gets, the POIs of the session are ascending and skipped
+     * @param catalogPois the POIs of the scores, null for every POI
+     * @return the candidates, best first
+     */
+    private int[] SelectSessionCandidates(double[] scores, int[] catalogPois, int[] interactions) {
+        int[] candidates = new int[Math.min(candidatesPerUser, scores.length)];
+        int count = CandidateLists.SelectTop(scores, catalogPois, interactions, candidates, new float[candidates.length]);
+        return Arrays.copyOf(candidates, count);
+    }
+
+    /**
+     * Recommends the most visited POIs around the user, from the lists that
+     * are built with the dataset, so it needs no model
+     * @param radius the radius in km
+     * @param userLat the latitude of the user
+     * @param userLng the longitude of the user
+     * @return the POIs inside the radius sorted by distance
+     */
+    public List<Poi> CalculatePopularLocalPOIs(int radius, double userLat, double userLng) {
+        return CalculatePopularLocalPOIs(radius, userLat, userLng, null, Integer.MAX_VALUE);
+    }
+
+    private List<Poi> CalculatePopularLocalPOIs(int radius, double userLat, double userLng,
+                                                Set<Poi.POICategoryID> categories, int poisPerCategory) {
+        PopularityFallback fallback = popularityFallback;
+        if (fallback == null) return new ArrayList<>();
+
+        if (categories == null) {
+            return LocatePOIs(fallback.GetPopularPOIs(userLat, userLng, radius, null), radius, userLat, userLng, poisPerCategory);
+        }
+
+        return LocateCategoryPOIs(categories, category -> fallback.GetPopularPOIs(userLat, userLng, radius, category),
+                radius, userLat, userLng, poisPerCategory);
+    }
+
+    /**
+     * Ranks the POIs of the catalog by their check ins in the dataset, again
+     * whenever check ins are added to it, from the counts the fold in keeps
+     */
+    private void BuildPopularityFallback() {
+        if (poiCatalog == null) return;
+
+        long startTime = System.nanoTime();
+        popularityFallback = new PopularityFallback(poiCatalog, poiCheckIns, candidatesPerUser);
+        System.out.println("Built the popular POIs in " + ParserUtils.GetTimeInSec(startTime) + "sec");
+    }
+
+    /**
+     * Measures the latency of the session recommendations on random sessions
+     * of the dataset, against the latency budget
+     * @param sessions the number of the sessions
+     * @param sessionLength the POIs of every session
+     */
+    public void BenchmarkSessionRecommendations(int sessions, int sessionLength) {
+        ServingModel model = servedModel;
+        if (model == null) return;
+
+        SplittableRandom random = new SplittableRandom(randomSeed);
+        double[] latencies = new double[sessions];
+        for (int session = 0; session < sessions; session++) {
+            List<Integer> sessionPois = new ArrayList<>();
+            for (int i = 0; i < sessionLength; i++) sessionPois.add(random.nextInt(model.getPois()));
+
+            long startTime = System.nanoTime();
+            RecommendForSession(model, sessionPois, Integer.MAX_VALUE, 0, 0, null, Integer.MAX_VALUE);
+            latencies[session] = (System.nanoTime() - startTime) / 1e6;
+        }
+
+        Arrays.sort(latencies);
+        long overBudget = Arrays.stream(latencies).filter(latency -> latency > sessionLatencyBudget).count();
+
+        System.out.println("**************************************");
+        System.out.println("Session Recommendations: " + sessions + " sessions of " + sessionLength + " POIs");
+        System.out.println("Mean: " + String.format("%.3f", Arrays.stream(latencies).average().orElse(0)) + "ms");
+        System.out.println("p50: " + String.format("%.3f", latencies[sessions / 2]) + "ms");
+        System.out.println("p99: " + String.format("%.3f", latencies[(int) Math.min(sessions - 1, Math.ceil(sessions * 0.99) - 1)]) + "ms");
+        System.out.println("Max: " + String.format("%.3f", latencies[sessions - 1]) + "ms");
+        System.out.println("Over the budget of " + sessionLatencyBudget + "ms: " + overBudget);
+        System.out.println("**************************************");
+    }
+
+    /**
+     * Locates the candidates of every category on its own and merges them
+     * @param categories the categories
+     * @param categoryCandidates the candidates of a category, best first
+     * @param poisPerCategory the POIs of a category at most
+     * @return the POIs inside the radius sorted by distance
+     */
+    private List<Poi> LocateCategoryPOIs(Set<Poi.POICategoryID> categories,
+                                         Function<Poi.POICategoryID, int[]> categoryCandidates,
+                                         int radius, double userLat, double userLng, int poisPerCategory) {
+        List<Poi> recommendedPOIs = new ArrayList<>();
+        for (Poi.POICategoryID category : categories) {
+            recommendedPOIs.addAll(LocatePOIs(categoryCandidates.apply(category), radius, userLat, userLng, poisPerCategory));
+        }
+
+        /* Sort ascending base on poi's distance from user */
+        recommendedPOIs.sort(Comparator.comparingInt(Poi::getDistance));
+
+        return recommendedPOIs;
+    }
+
+    /**
+     * Keeps the best candidates inside the radius, up to a limit. The distances
+     * are kept in arrays of the request, a Poi is created only for the POIs it returns
+     * @param pois the candidate POIs, best first
+     * @param limit the POIs to return at most, the best ones inside the radius
+     * @return the POIs inside the radius sorted by distance
+     */
+    private List<Poi> LocatePOIs(int[] pois, int radius, double userLat, double userLng, int limit) {
+        PoiCatalog catalog = poiCatalog;
+
+        /* The distance of every POI inside the radius with its place in the candidates, in one long to sort */
+        long[] located = new long[pois.length];
+        int count = 0;
+
+        /*
+         * The sphere is within a percent of the ellipsoid, a POI far outside the radius
+         * on the sphere skips the exact distance. A radius around the whole sphere skips none
+         */
+        double radiusAngle = (radius + 1.0) * SPHERE_DISTANCE_MARGIN / SPHERE_RADIUS_KM;
+        double minAngleCosine = radiusAngle < Math.PI ? Math.cos(radiusAngle) : -Double.MAX_VALUE;
+        double userLatSine = Math.sin(deg2rad(userLat));
+        double userLatCosine = Math.cos(deg2rad(userLat));
+        double userLngRadian = deg2rad(userLng);
+
+        for (int i = 0; i < pois.length && count < limit; i++) {
+            int poi = pois[i];
+            if (!catalog.Contains(poi)) continue;
+            if (catalog.GetCentralAngleCosine(poi, userLatSine, userLatCosine, userLngRadian) < minAngleCosine) continue;
+
+            double poiLat = catalog.getLatitude(poi);
+            double poiLng = catalog.getLongitude(poi);
+
+            /* Calculate distances (User -> POI) */
+            int distance = (int) CalculateDistance(userLat, userLng, poiLat, poiLng);
+
+            /* Got only pois inside the radius */
+            if (distance / 1000 <= radius) {
+                located[count++] = ((long) distance << 32) | i;
+            }
+        }
+
+        /* Sort ascending base on poi's distance from user, the same distance keeps the order of the candidates */
+        Arrays.sort(located, 0, count);
+
+        List<Poi> recommendedPOIs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            recommendedPOIs.add(catalog.CreatePoi(pois[(int) located[i]], (int) (located[i] >>> 32)));
+        }
+
+        return recommendedPOIs;
+    }
+
+    public double CalculateDistance(double userLat, double userLon, double poiLat, double poiLon){
         GlobalCoordinates poiPos = new GlobalCoordinates(poiLat, poiLon);
         GlobalCoordinates userPos = new GlobalCoordinates(userLat, userLon);
 
@@ -499,165 +2222,81 @@ public class Master extends Server implements IMaster {
      * Helper Methods
      */
     public HashMap<String, Integer[]> SplitMatrix(INDArray matrix, String matrixName) {
-        int totalCores = availableWorkers
-                .stream()
-                .map(Worker::getInstanceCpuCores)
-                .reduce(0, (a, b) -> a + b);
-
-        int currentIndex = -1;
-
-        int rowsPerCore = 0;
-        LinkedHashMap<String, Double> sortedMap =
-                new LinkedHashMap<>();
+        boolean isX = matrixName.equals("X");
+        ThroughputPartitioner partitioner = isX ? xPartitioner : yPartitioner;
 
         /*
           Execution times HashMap. Keys: Worker's name,
           Values: latest execution time of the worker's duty
          */
-        HashMap<String, Double> matrixExecutionTimes =
-                new HashMap<>(matrixName.equals("X") ?
-                        xExecutionTimes :
-                        yExecutionTimes);
+        HashMap<String, Double> matrixExecutionTimes = isX ? xExecutionTimes : yExecutionTimes;
 
         /*
           Workers Distribution HashMap. Keys: Worker's name,
           Values: latest number of matrix's rows given to create
          */
-        HashMap<String, Integer> latestWorkersDistribution =
-                matrixName.equals("X") ?
-                        latestWorkersXDistribution :
-                        latestWorkersYDistribution;
-
-        /*
-         * During the first iteration we distribute only depending on the
-         * cores of each worker, so we divide the rows to the cores evenly
-         */
-        if (currentIteration == 0) {
-            rowsPerCore = matrix.rows() / totalCores;
-        }
-        /*
-         * Otherwise we distribute depending the previous execution times
-         */
-        else {
-            /* Create a sorted version HashMap of the matrixExecutionTimes HashMap */
-            ArrayList<String> mapKeys = new ArrayList<>(matrixExecutionTimes.keySet());
-            ArrayList<Double> mapValues = new ArrayList<>(matrixExecutionTimes.values());
-            Collections.sort(mapValues);
-            Collections.sort(mapKeys);
-
-            for (Double val : mapValues) {
-                Iterator<String> keyIt = mapKeys.iterator();
-
-                while (keyIt.hasNext()) {
-                    String key = keyIt.next();
-
-                    if (matrixExecutionTimes.get(key).equals(val)) {
-                        keyIt.remove();
-                        sortedMap.put(key, val);
-                        break;
-                    }
-                }
-            }
-        }
-
-        HashMap<String, Integer[]> workerIndexes = new HashMap<>();
-
-        /*
-           Calculate min execution time in order to decide later
-           if we need to redistribute
-         */
-        double totalExTime = matrixExecutionTimes.values()
-                .stream()
-                .reduce(0.0, (a, b) -> a + b);
-
-        double meanExTime = totalExTime / availableWorkers.size();
-
-        /* Find the last value(ex time), meaning the slowest worker's time */
-        Iterator<Double> valueIt = sortedMap.values().iterator();
-        Double lastValue = 0.0;
-        while (valueIt.hasNext()) {
-            lastValue = valueIt.next();
-        }
+        HashMap<String, Integer> latestWorkersDistribution = isX ?
+                latestWorkersXDistribution :
+                latestWorkersYDistribution;
 
         System.out.println("***********************************************");
 
-        /*
-           No need to distribute if we are in the first loop
-           or the difference between the slowest time and the
-           min is lower than 1 sec
-         */
-        boolean NoNeedRedistribution = currentIteration == 0 || (lastValue - meanExTime) <= 0;
-
-        /*
-         * If we do need to distribute, we remove 10% of the rows
-         * given to the slowest worker, and share it among the rest workers
-         */
-        if (!NoNeedRedistribution) {
-            Iterator<String> keyIt = sortedMap.keySet().iterator();
-            String lastKey = "";
-            while (keyIt.hasNext()) {
-                lastKey = keyIt.next();
+        /* Every execution time is a new measurement of the throughput of its worker */
+        matrixExecutionTimes.forEach((name, executionTime) -> {
+            Double predictedTime = partitioner.getPredictedTime(name);
+            if (predictedTime != null) {
+                System.out.println("Cost of " + matrixName + " on " + name +
+                        ": Predicted " + String.format("%.3f", predictedTime) + "sec" +
+                        ", Measured " + String.format("%.3f", executionTime) + "sec");
             }
+            partitioner.Update(name, executionTime);
+        });
+        matrixExecutionTimes.clear();
 
-            int slowestWorkerIndices = latestWorkersDistribution.get(lastKey);
-            int percentMoved = slowestWorkerIndices / 10;
-            latestWorkersDistribution.put(lastKey, slowestWorkerIndices - percentMoved);
-            int rowsToBeAddedToRest = percentMoved / (availableWorkers.size() - 1);
+        double[] rowCosts = isX ? xRowCosts : yRowCosts;
+        if (rowCosts == null || rowCosts.length != matrix.rows()) {
+            rowCosts = new double[matrix.rows()];
+            Arrays.fill(rowCosts, 1);
+        }
 
-            for (String currentKey : sortedMap.keySet()) {
-                if (currentKey.equals(lastKey)) break;
-                int currentIndices = latestWorkersDistribution.get(currentKey);
-                latestWorkersDistribution.put(currentKey, currentIndices + rowsToBeAddedToRest);
-                percentMoved -= rowsToBeAddedToRest;
-            }
+        List<String> workerNames = availableWorkers
+                .stream()
+                .map(Worker::getName)
+                .collect(Collectors.toList());
+        /* Before any measurement, the calibrations size the ranges, or the cores when a worker has none */
+        boolean isCalibrated = availableWorkers
+                .stream()
+                .allMatch(worker -> worker.getInstanceThroughput() > 0);
+        List<Double> initialWeights = availableWorkers
+                .stream()
+                .map(worker -> isCalibrated ?
+                        worker.getInstanceThroughput() :
+                        (double) worker.getInstanceCpuCores())
+                .collect(Collectors.toList());
 
-            /* In case there are rows left, we add them to the first worker */
-            if (percentMoved > 0) {
-                Iterator<String> keyIt3 = sortedMap.keySet().iterator();
-                if (keyIt3.hasNext()) {
-                    String currentKey = keyIt3.next();
-                    int currentIndices = latestWorkersDistribution.get(currentKey);
-                    latestWorkersDistribution.put(currentKey, currentIndices + percentMoved);
-                }
-            }
-        }
+        int[] workerRows = partitioner.Partition(workerNames, initialWeights, rowCosts);
+
+        HashMap<String, Integer[]> workerIndexes = new HashMap<>();
+        int currentIndex = -1;
 
-        /* For each worker, we set the number of rows
-           depending on the need or not for distribution */
         for (int i = 0; i < availableWorkers.size(); i++) {
             Worker worker = availableWorkers.get(i);
 
-            /*
-               If we don't need to redistribute, we distribute the
-               rows equally to the number of the cores it has.
-               Otherwise, we do the redistribution
-             */
-            int workerRows = NoNeedRedistribution ?
-                    (rowsPerCore * worker.getInstanceCpuCores()) :
-                    latestWorkersDistribution.get(worker.getName());
-
             Integer[] indexes = new Integer[2];
             indexes[0] = currentIndex + 1;
-
-            if (i == availableWorkers.size() - 1) {
-                if (currentIndex != matrix.rows()) {
-                    indexes[1] = matrix.rows() - 1;
-                    System.out.println("Distributing " + matrixName +
-                            " to " + worker.getName() +
-                            " from " + indexes[0] +
-                            " to " + indexes[1] +
-                            ". Total: " + (indexes[1] - indexes[0] + 1));
-                }
-            } else {
-                currentIndex += workerRows;
-                indexes[1] = currentIndex;
-                System.out.println("Distributing " + matrixName +
-                        " to " + worker.getName() +
-                        " from " + indexes[0] +
-                        " to " + indexes[1] +
-                        ". Total: " + (indexes[1] - indexes[0] + 1));
-            }
-            latestWorkersDistribution.put(worker.getName(), indexes[1] - indexes[0] + 1);
+            currentIndex += workerRows[i];
+            indexes[1] = currentIndex;
+
+            Double predictedTime = partitioner.getPredictedTime(worker.getName());
+            System.out.println("Distributing " + matrixName +
+                    " to " + worker.getName() +
+                    " from " + indexes[0] +
+                    " to " + indexes[1] +
+                    ". Total: " + workerRows[i] +
+                    ". Cost: " + String.format("%.3g", partitioner.getLatestCost(worker.getName())) +
+                    (predictedTime != null ? ". Predicted: " + String.format("%.3f", predictedTime) + "sec" : ""));
+
+            latestWorkersDistribution.put(worker.getName(), workerRows[i]);
             workerIndexes.put(worker.getName(), indexes);
         }
 
@@ -666,19 +2305,87 @@ public class Master extends Server implements IMaster {
         return workerIndexes;
     }
 
-    private int getMax(INDArray pois, double previousMax, int user) {
-        double max = -1;
-        int maxIndex = -1;
-        for (int i = 0; i < pois.columns(); i++) {
-            double element = pois.getDouble(0, i);
-            if (previousMax > element &&
-                    element > max &&
-                    P.getDouble(user, i) != 1) {
-                max = element;
-                maxIndex = i;
-            }
+    /**
+     * let's get the K << max{U,I}
+     * meaning a number much smaller than the biggest column or dimension
+     */
+    private int GetFactorsCount() {
+        int BiggestDimension = R.columns() > R.rows() ?
+                R.columns() : R.rows();
+
+        return BiggestDimension / 10;
+    }
+
+    /**
+     * The memory a worker needs: the C and P matrices, the X and Y
+     * matrices and the copies of X and Y that arrive while it calculates
+     * @return the bytes
+     */
+    private long GetRequiredWorkerBytes() {
+        long elementBytes = R.data().getElementSize();
+        long ratingsElements = 2L * R.rows() * R.columns();
+        long factorsElements = 2L * (R.rows() + R.columns()) * GetFactorsCount();
+
+        return (ratingsElements + factorsElements) * elementBytes;
+    }
+
+    /**
+     * The solve of a row costs nnz * K^2 to build its K x K system and K^3 to invert it
+     * @param interactions the interactions of every row
+     * @param K the number of the factors
+     * @return the cost of every row
+     */
+    private static double[] CalculateRowCosts(int[] interactions, int K) {
+        double[] rowCosts = new double[interactions.length];
+        for (int row = 0; row < interactions.length; row++) {
+            rowCosts[row] = (double) interactions[row] * K * K + (double) K * K * K;
         }
-        return maxIndex;
+        return rowCosts;
+    }
+
+    /**
+     * Gives the matrix that a slice should be read into, while it is read.
+     * The rows are claimed for the frame right here, so when a range and
+     * its speculated copy arrive together only one of them writes to the
+     * matrix, the other one is read aside and discarded
+     * @param header the header of the frame
+     * @param isX if the slice is of the X or the Y
+     * @return the matrix of the running half step, or null
+     */
+    private INDArray GetFrameTarget(CommunicationMessage header, boolean isX) {
+        FactorAssembly assembly = isX ? xAssembly : yAssembly;
+        MessageType expectedType = communicationMode == CommunicationMode.PIPELINED ?
+                (isX ? MessageType.X_CHUNK : MessageType.Y_CHUNK) :
+                (isX ? MessageType.X_CALCULATED : MessageType.Y_CALCULATED);
+
+        if (assembly == null ||
+                assembly.IsComplete() ||
+                assembly.IsReceived(header.getStartIndex(), header.getEndIndex()) ||
+                header.getType() != expectedType ||
+                header.getIteration() != assembly.getIteration() ||
+                !assembly.Claim(header.getStartIndex(), header.getEndIndex())) {
+            return null;
+        }
+        return assembly.getMatrix();
+    }
+
+    /**
+     * Flattens the indexes of the workers in the order of their ranks
+     * @param workerIndexes the start and end index of each worker
+     * @return the start and end index of every rank
+     */
+    private int[] GetRankRanges(HashMap<String, Integer[]> workerIndexes) {
+        int[] ranges = new int[2 * availableWorkers.size()];
+        for (int rank = 0; rank < availableWorkers.size(); rank++) {
+            Integer[] indexes = workerIndexes.get(availableWorkers.get(rank).getName());
+            ranges[2 * rank] = indexes[0];
+            ranges[2 * rank + 1] = indexes[1];
+        }
+        return ranges;
+    }
+
+    private INDArray GetRows(INDArray matrix, int startIndex, int endIndex) {
+        return matrix.get(NDArrayIndex.interval(startIndex, endIndex + 1), NDArrayIndex.all());
     }
 
     /**
@@ -692,4 +2399,108 @@ public class Master extends Server implements IMaster {
         this.howManyWorkersToWait = howManyWorkersToWait;
     }
 
+    public FactorEncoding getFactorEncoding() {
+        return factorEncoding;
+    }
+
+    public void setFactorEncoding(FactorEncoding factorEncoding) {
+        this.factorEncoding = factorEncoding;
+    }
+
+    public double getDeltaThreshold() {
+        return deltaThreshold;
+    }
+
+    public void setDeltaThreshold(double deltaThreshold) {
+        this.deltaThreshold = deltaThreshold;
+    }
+
+    public double getUpdateTolerance() {
+        return updateTolerance;
+    }
+
+    public void setUpdateTolerance(double updateTolerance) {
+        this.updateTolerance = updateTolerance;
+    }
+
+    public double getSessionLatencyBudget() {
+        return sessionLatencyBudget;
+    }
+
+    public void setSessionLatencyBudget(double sessionLatencyBudget) {
+        this.sessionLatencyBudget = sessionLatencyBudget;
+    }
+
+    public int getSessionBenchmarkSize() {
+        return sessionBenchmarkSize;
+    }
+
+    public void setSessionBenchmarkSize(int sessionBenchmarkSize) {
+        this.sessionBenchmarkSize = sessionBenchmarkSize;
+    }
+
+    public int getRetrainThreshold() {
+        return retrainThreshold;
+    }
+
+    public void setRetrainThreshold(int retrainThreshold) {
+        this.retrainThreshold = retrainThreshold;
+    }
+
+    public int getCandidatesPerUser() {
+        return candidatesPerUser;
+    }
+
+    public void setCandidatesPerUser(int candidatesPerUser) {
+        this.candidatesPerUser = candidatesPerUser;
+    }
+
+    public boolean isFoldingInPois() {
+        return isFoldingInPois;
+    }
+
+    public void setFoldingInPois(boolean foldingInPois) {
+        isFoldingInPois = foldingInPois;
+    }
+
+    public long getRandomSeed() {
+        return randomSeed;
+    }
+
+    public void setRandomSeed(long randomSeed) {
+        this.randomSeed = randomSeed;
+    }
+
+    public boolean isWarmStart() {
+        return isWarmStart;
+    }
+
+    public void setWarmStart(boolean warmStart) {
+        isWarmStart = warmStart;
+    }
+
+    public SchedulingMode getSchedulingMode() {
+        return schedulingMode;
+    }
+
+    public void setSchedulingMode(SchedulingMode schedulingMode) {
+        this.schedulingMode = schedulingMode;
+    }
+
+    public int getStaleness() {
+        return staleness;
+    }
+
+    public void setStaleness(int staleness) {
+        this.staleness = staleness;
+    }
+
+    public CommunicationMode getCommunicationMode() {
+        return communicationMode;
+    }
+
+    public void setCommunicationMode(CommunicationMode communicationMode) {
+        this.communicationMode = communicationMode;
+    }
+
 }
@@ -0,0 +1,141 @@
+package com.distributedsystems.recommendationsystems.Server;
+
+import com.distributedsystems.recommendationsystems.Models.Poi;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The POIs the master recommends, addressed by their column in the dataset.
+ * Every attribute is an array of its own, so a request reads the positions
+ * of its candidates from primitive arrays and creates a Poi only for the
+ * ones it returns. The names and the photos repeat across the POIs, every
+ * distinct one is kept once. It never changes once built
+ */
+class PoiCatalog {
+    private final double[] latitudes;
+    private final double[] longitudes;
+
+    /* On the sphere: the sine and the cosine of the latitude, and the longitude in radians */
+    private final double[] latitudeSines;
+    private final double[] latitudeCosines;
+    private final double[] longitudeRadians;
+
+    /* The ordinal of the category, -1 where a POI has none */
+    private final byte[] categories;
+
+    /* The id is null where the catalog has no POI for a column */
+    private final String[] ids;
+    private final String[] names;
+    private final String[] photos;
+
+    private final static Poi.POICategoryID[] CATEGORIES = Poi.POICategoryID.values();
+
+    /**
+     * @param pois the POIs of the catalog, by their column in the dataset
+     */
+    PoiCatalog(Map<String, Poi> pois) {
+        int size = pois.keySet()
+                .stream()
+                .mapToInt(Integer::parseInt)
+                .max()
+                .orElse(-1) + 1;
+
+        latitudes = new double[size];
+        longitudes = new double[size];
+        latitudeSines = new double[size];
+        latitudeCosines = new double[size];
+        longitudeRadians = new double[size];
+        categories = new byte[size];
+        ids = new String[size];
+        names = new String[size];
+        photos = new String[size];
+
+        Map<String, String> strings = new HashMap<>();
+        for (Map.Entry<String, Poi> entry : pois.entrySet()) {
+            int poi = Integer.parseInt(entry.getKey());
+            Poi catalogPoi = entry.getValue();
+
+            latitudes[poi] = catalogPoi.getLatitude();
+            longitudes[poi] = catalogPoi.getLongitude();
+            latitudeSines[poi] = Math.sin(Math.toRadians(catalogPoi.getLatitude()));
+            latitudeCosines[poi] = Math.cos(Math.toRadians(catalogPoi.getLatitude()));
+            longitudeRadians[poi] = Math.toRadians(catalogPoi.getLongitude());
+            categories[poi] = catalogPoi.getCategory() == null ? -1 : (byte) catalogPoi.getCategory().ordinal();
+            ids[poi] = catalogPoi.getId();
+            names[poi] = Intern(strings, catalogPoi.getName());
+            photos[poi] = Intern(strings, catalogPoi.getPhoto());
+        }
+    }
+
+    private static String Intern(Map<String, String> strings, String string) {
+        return string == null ? null : strings.computeIfAbsent(string, key -> key);
+    }
+
+    /**
+     * Creates the POI of a recommendation, every request gets POIs of its own
+     * @param poi the column of the POI
+     * @param distance the distance of the POI from the user in m
+     * @return the POI
+     */
+    Poi CreatePoi(int poi, int distance) {
+        Poi recommendedPoi = new Poi(ids[poi], names[poi], latitudes[poi], longitudes[poi], getCategory(poi));
+        recommendedPoi.setPhoto(photos[poi]);
+        recommendedPoi.setDistance(distance);
+        return recommendedPoi;
+    }
+
+    /**
+     * The cosine of the angle between a position and a POI at the center of
+     * the sphere, it falls as the distance grows, so comparing it to the
+     * cosine of the angle of a radius needs no inverse cosine per POI
+     * @param poi the column of the POI
+     * @param latitudeSine the sine of the latitude of the position
+     * @param latitudeCosine the cosine of the latitude of the position
+     * @param longitudeRadian the longitude of the position in radians
+     * @return the cosine of the angle
+     */
+    double GetCentralAngleCosine(int poi, double latitudeSine, double latitudeCosine, double longitudeRadian) {
+        return latitudeSine * latitudeSines[poi] +
+                latitudeCosine * latitudeCosines[poi] * Math.cos(longitudeRadian - longitudeRadians[poi]);
+    }
+
+    /**
+     * @param poi the column of the POI
+     * @return if the catalog has a POI for the column
+     */
+    boolean Contains(int poi) {
+        return poi >= 0 && poi < ids.length && ids[poi] != null;
+    }
+
+    /**
+     * @param category the category
+     * @param poiCount the POIs of the model, the columns beyond it are left out
+     * @return the POIs of the category, in ascending order
+     */
+    int[] GetCategoryPois(Poi.POICategoryID category, int poiCount) {
+        int[] pois = new int[Math.min(poiCount, categories.length)];
+        int count = 0;
+        for (int poi = 0; poi < pois.length; poi++) {
+            if (categories[poi] == category.ordinal() && ids[poi] != null) pois[count++] = poi;
+        }
+        return Arrays.copyOf(pois, count);
+    }
+
+    int getSize() {
+        return ids.length;
+    }
+
+    double getLatitude(int poi) {
+        return latitudes[poi];
+    }
+
+    double getLongitude(int poi) {
+        return longitudes[poi];
+    }
+
+    Poi.POICategoryID getCategory(int poi) {
+        return categories[poi] < 0 ? null : CATEGORIES[categories[poi]];
+    }
+}
@@ -0,0 +1,138 @@
+package com.distributedsystems.recommendationsystems.Server;
+
+import com.distributedsystems.recommendationsystems.Models.Poi;
+import com.distributedsystems.recommendationsystems.Utils.GeoHash;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Recommends the most visited POIs, for when there is no model yet or the
+ * user is unknown to it. The POIs are ranked once by their check ins, and
+ * the lists keep ranks, so lists merge by sorting their ranks. There are
+ * lists of the whole catalog and of every geohash cell, at a few sizes of
+ * cells, for every category and for all of them. It never changes once
+ * built, a new one replaces it
+ */
+class PopularityFallback {
+    /* The POIs by rank, most visited first */
+    private final int[] order;
+    private final int listLength;
+
+    private final PopularLists all = new PopularLists();
+    private final Map<Poi.POICategoryID, PopularLists> categories = new EnumMap<>(Poi.POICategoryID.class);
+
+    /* The precisions of the cells, from the biggest cells to the smallest, a precision is a prefix of the next one */
+    private final static int[] CELL_PRECISIONS = {4, 5, 6};
+
+    /**
+     * @param catalog the POIs of the catalog
+     * @param checkIns the check ins of every POI
+     * @param listLength the POIs of a list
+     */
+    PopularityFallback(PoiCatalog catalog, double[] checkIns, int listLength) {
+        this.listLength = listLength;
+
+        /* The POIs of the catalog that are in the dataset, the most visited first */
+        order = IntStream.range(0, Math.min(catalog.getSize(), checkIns.length))
+                .filter(catalog::Contains)
+                .boxed()
+                .sorted(Comparator.comparingDouble((Integer poi) -> -checkIns[poi]).thenComparingInt(poi -> poi))
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        for (int rank = 0; rank < order.length; rank++) {
+            int poi = order[rank];
+            String cell = GeoHash.Encode(catalog.getLatitude(poi), catalog.getLongitude(poi), CELL_PRECISIONS[CELL_PRECISIONS.length - 1]);
+
+            all.Add(rank, cell, listLength);
+            if (catalog.getCategory(poi) != null) {
+                categories.computeIfAbsent(catalog.getCategory(poi), category -> new PopularLists())
+                        .Add(rank, cell, listLength);
+            }
+        }
+
+        all.Seal();
+        categories.values().forEach(PopularLists::Seal);
+    }
+
+    /**
+     * The most visited POIs around a position. The smallest cells that the
+     * radius fits in are taken, the cell of the position and the ones around
+     * it, a radius bigger than every cell takes the POIs of the whole catalog
+     * @param latitude the latitude of the user
+     * @param longitude the longitude of the user
+     * @param radius the radius in km
+     * @param category the category of the POIs, null for every category
+     * @return the POIs, most visited first
+     */
+    int[] GetPopularPOIs(double latitude, double longitude, int radius, Poi.POICategoryID category) {
+        PopularLists lists = category == null ? all : categories.get(category);
+        if (lists == null) return new int[0];
+
+        int level = CELL_PRECISIONS.length - 1;
+        while (level >= 0 && radius > GeoHash.GetCellSizeKm(latitude, CELL_PRECISIONS[level])) level--;
+        if (level < 0) {
+            return ToPOIs(lists.global, lists.global.length);
+        }
+
+        Map<String, int[]> cells = lists.cells.get(level);
+        int[] cellRanks = GeoHash.GetNeighbourhood(latitude, longitude, CELL_PRECISIONS[level])
+                .stream()
+                .map(cells::get)
+                .filter(Objects::nonNull)
+                .flatMapToInt(Arrays::stream)
+                .toArray();
+        Arrays.sort(cellRanks);
+
+        return ToPOIs(cellRanks, Math.min(cellRanks.length, listLength));
+    }
+
+    private int[] ToPOIs(int[] listRanks, int length) {
+        int[] pois = new int[length];
+        for (int i = 0; i < length; i++) {
+            pois[i] = order[listRanks[i]];
+        }
+        return pois;
+    }
+
+    /**
+     * The ranks of the most visited POIs of the catalog and of every cell of
+     * every precision, ascending
+     */
+    private static class PopularLists {
+        private int[] global;
+        private final List<Map<String, int[]>> cells = new ArrayList<>();
+
+        private final List<Integer> globalRanks = new ArrayList<>();
+        private final List<Map<String, List<Integer>>> cellRanks = new ArrayList<>();
+
+        PopularLists() {
+            for (int precision : CELL_PRECISIONS) cellRanks.add(new HashMap<>());
+        }
+
+        /* The ranks come in ascending order, so the lists stay sorted */
+        void Add(int rank, String cell, int listLength) {
+            if (globalRanks.size() < listLength) globalRanks.add(rank);
+
+            for (int level = 0; level < CELL_PRECISIONS.length; level++) {
+                List<Integer> ranks = cellRanks.get(level)
+                        .computeIfAbsent(cell.substring(0, CELL_PRECISIONS[level]), key -> new ArrayList<>());
+                if (ranks.size() < listLength) ranks.add(rank);
+            }
+        }
+
+        void Seal() {
+            global = globalRanks.stream().mapToInt(Integer::intValue).toArray();
+            for (Map<String, List<Integer>> levelRanks : cellRanks) {
+                cells.add(levelRanks
+                        .entrySet()
+                        .stream()
+                        .collect(Collectors.toMap(
+                                Map.Entry::getKey,
+                                entry -> entry.getValue().stream().mapToInt(Integer::intValue).toArray())));
+            }
+        }
+    }
+}
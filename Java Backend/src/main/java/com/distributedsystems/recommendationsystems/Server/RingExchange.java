@@ -0,0 +1,52 @@
+package com.distributedsystems.recommendationsystems.Server;
+
+import com.distributedsystems.recommendationsystems.Models.CommunicationMessage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Mailbox of the ring slices a worker receives from its previous
+ * worker in the ring. Slices are delivered by the connection threads
+ * and awaited by the thread that runs the all-gather, keyed by the
+ * iteration, the matrix and the starting row of the slice. When the
+ * master aborts an iteration, its slices are dropped and its waiters
+ * are released.
+ */
+class RingExchange {
+    private final Map<String, CommunicationMessage> receivedSlices = new HashMap<>();
+    private int abortedIteration = -1;
+
+    synchronized void Deliver(CommunicationMessage slice) {
+        if (slice.getIteration() <= abortedIteration) return;
+
+        receivedSlices.put(GetKey(slice.getIteration(), slice.getXArray() != null, slice.getStartIndex()), slice);
+        notifyAll();
+    }
+
+    /**
+     * Waits for a slice of the previous worker
+     * @return the slice, or null if its iteration was aborted
+     */
+    synchronized CommunicationMessage Await(int iteration, boolean isX, int startIndex) throws InterruptedException {
+        String key = GetKey(iteration, isX, startIndex);
+        while (!receivedSlices.containsKey(key) && iteration > abortedIteration) {
+            wait();
+        }
+        return receivedSlices.remove(key);
+    }
+
+    /**
+     * Drops the slices of the iteration and of the ones before it and releases their waiters
+     * @param iteration the aborted iteration
+     */
+    synchronized void Abort(int iteration) {
+        abortedIteration = Math.max(abortedIteration, iteration);
+        receivedSlices.values().removeIf(slice -> slice.getIteration() <= abortedIteration);
+        notifyAll();
+    }
+
+    private static String GetKey(int iteration, boolean isX, int startIndex) {
+        return iteration + (isX ? "X" : "Y") + startIndex;
+    }
+}
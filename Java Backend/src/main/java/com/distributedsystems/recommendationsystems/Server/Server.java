@@ -2,11 +2,17 @@ package com.distributedsystems.recommendationsystems.Server;
 
 import com.distributedsystems.recommendationsystems.Abstractions.IServer;
 import com.distributedsystems.recommendationsystems.Models.CommunicationMessage;
+import com.distributedsystems.recommendationsystems.Utils.FrameUtils;
+import org.bytedeco.javacpp.Pointer;
 
 import java.io.*;
 import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 public class Server implements IServer, Runnable{
     private String name;
@@ -14,12 +20,18 @@ public class Server implements IServer, Runnable{
     private int port;
     private int cpuCores;
     private int ramSize;
+    private double throughput;
+    private long freeMemoryBytes;
 
     /* Define the socket that receives requests */
     private ServerSocket providerSocket;
 
-    /* Define the socket that is used to handle the connection */
-    private Socket socketConn = null;
+    /* Bounded retries of the sends, with exponential backoff */
+    private final static int MAX_SEND_ATTEMPTS = 5;
+    private final static long RETRY_BACKOFF_MS = 200;
+
+    /* Define the socket that is used to handle the connection of each thread */
+    private final ThreadLocal<Socket> socketConn = new ThreadLocal<>();
 
     protected Server() {}
 
@@ -33,20 +45,25 @@ public class Server implements IServer, Runnable{
      */
     public void OpenServer(){
         try {
-            providerSocket = new ServerSocket(getPort());
+            /* Channel backed, so binary frames can be read straight from the socket */
+            providerSocket = ServerSocketChannel.open().socket();
+            providerSocket.bind(new InetSocketAddress(getPort()));
 
             System.out.println(getInstanceName() + " " + getName() + " " + getIp() + ":" + getPort() + " server opened!");
 
             //noinspection InfiniteLoopStatement
             while (true) {
-                socketConn = providerSocket.accept();
+                Socket connection = providerSocket.accept();
 
                 /*
                     Creates a new thread from the runnable implementation
                     instance and start it. Remember this will call the
                     override method of Worker/Master/Client respectively
                  */
-                (new Thread(this)).start();
+                (new Thread(() -> {
+                    setSocketConn(connection);
+                    this.run();
+                })).start();
             }
         }catch(IOException ignored){}
         finally {
@@ -67,37 +84,105 @@ public class Server implements IServer, Runnable{
         }
     }
 
-    public void SendCommunicationMessage(CommunicationMessage message, String ip, int port) {
-        ObjectInputStream in = null;
-        ObjectOutputStream out = null;
-        Socket socket = null;
+    public boolean SendCommunicationMessage(CommunicationMessage message, String ip, int port) {
+        /* Messages with matrices travel as binary frames */
+        if (FrameUtils.IsFrameMessage(message)) {
+            return SendFrameMessage(message, ip, port) >= 0;
+        }
 
-        boolean messageSent = false;
+        for (int attempt = 1; attempt <= MAX_SEND_ATTEMPTS; attempt++) {
+            ObjectInputStream in = null;
+            ObjectOutputStream out = null;
+            Socket socket = null;
 
-        try{
-            socket = new Socket(ip, port);
+            try{
+                socket = new Socket(ip, port);
+
+                out = new ObjectOutputStream(socket.getOutputStream());
+                in = new ObjectInputStream(socket.getInputStream());
 
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
+                out.writeObject(message);
+                out.flush();
 
-            out.writeObject(message);
-            out.flush();
+                return true;
+            }catch(IOException ex){
+                System.out.println("Got exception while sending message to " + ip + ":" + port +
+                        " (attempt " + attempt + " of " + MAX_SEND_ATTEMPTS + ")...");
+            }
+            finally {
+                CloseConnections(socket, in, out);
+            }
 
-            messageSent = true;
-        }catch(IOException ex){
-            System.out.println("Got exception while sending results to master...");
-            ex.printStackTrace();
+            if (!WaitBeforeRetry(attempt)) break;
         }
-        finally {
-            CloseConnections(socket, in, out);
+
+        System.out.println("Giving up on " + ip + ":" + port);
+        return false;
+    }
+
+    public long SendFrameMessage(CommunicationMessage message, String ip, int port) {
+        return SendFrameMessage(message, FrameUtils.EncodePayloads(message), ip, port);
+    }
+
+    /**
+     * @return the bytes written, or -1 if every attempt failed
+     */
+    public long SendFrameMessage(CommunicationMessage message, ByteBuffer[] payloads, String ip, int port) {
+        for (int attempt = 1; attempt <= MAX_SEND_ATTEMPTS; attempt++) {
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(ip, port))) {
+                return FrameUtils.WriteMessage(channel, message, payloads);
+            } catch (IOException ex) {
+                System.out.println("Got exception while sending frame to " + ip + ":" + port +
+                        " (attempt " + attempt + " of " + MAX_SEND_ATTEMPTS + ")...");
+            }
+
+            if (!WaitBeforeRetry(attempt)) break;
         }
 
-        if(!messageSent){
-            System.out.println("I am trying again!");
-            SendCommunicationMessage(message, ip, port);
+        System.out.println("Giving up on " + ip + ":" + port);
+        return -1;
+    }
+
+    /**
+     * Backs off exponentially between the attempts of a send
+     * @param attempt the attempt that just failed
+     * @return false if there are no attempts left or the thread got interrupted
+     */
+    private boolean WaitBeforeRetry(int attempt) {
+        if (attempt >= MAX_SEND_ATTEMPTS) return false;
+
+        try {
+            Thread.sleep(RETRY_BACKOFF_MS << (attempt - 1));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
+    /**
+     * Reads the first bytes of the accepted connection, in order to
+     * decide which protocol the other side talks
+     * @param in the input stream of the connection
+     * @return the first FrameUtils.MAGIC_SIZE bytes
+     */
+    protected byte[] SniffConnection(PushbackInputStream in) throws IOException {
+        byte[] magic = new byte[FrameUtils.MAGIC_SIZE];
+        new DataInputStream(in).readFully(magic);
+        return magic;
+    }
+
+    /**
+     * Checks if the sniffed bytes are the header of an ObjectOutputStream
+     * @param magic the sniffed bytes
+     * @return true if the other side is a Java object stream
+     */
+    protected boolean IsObjectStreamMagic(byte[] magic) {
+        ByteBuffer header = ByteBuffer.wrap(magic);
+        return header.getShort() == ObjectStreamConstants.STREAM_MAGIC &&
+                header.getShort() == ObjectStreamConstants.STREAM_VERSION;
+    }
+
     public void CloseConnections(ObjectInputStream in, ObjectOutputStream out){
         try{
             if (in != null) {
@@ -156,6 +241,24 @@ public class Server implements IServer, Runnable{
         return availRamInBytes / 1024 / 1024 / 1024;
     }
 
+    protected long getFreeHeapBytes(){
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+    }
+
+    /* The matrices live off heap, bounded by the limit of JavaCPP and by the free physical memory */
+    protected long getFreeOffHeapBytes(){
+        com.sun.management.OperatingSystemMXBean fragment =
+                (com.sun.management.OperatingSystemMXBean)
+                        ManagementFactory.getOperatingSystemMXBean();
+
+        long freePhysicalBytes = fragment.getFreePhysicalMemorySize();
+        long maxBytes = Pointer.maxBytes();
+        return maxBytes > 0 ?
+                Math.min(maxBytes - Pointer.totalBytes(), freePhysicalBytes) :
+                freePhysicalBytes;
+    }
+
     /**
      * Getters and Setters
      */
@@ -192,6 +295,22 @@ public class Server implements IServer, Runnable{
         this.cpuCores = cpuCores;
     }
 
+    protected double getInstanceThroughput() {
+        return throughput;
+    }
+
+    protected void setInstanceThroughput(double throughput) {
+        this.throughput = throughput;
+    }
+
+    protected long getInstanceFreeMemory() {
+        return freeMemoryBytes;
+    }
+
+    protected void setInstanceFreeMemory(long freeMemoryBytes) {
+        this.freeMemoryBytes = freeMemoryBytes;
+    }
+
     protected int getInstanceRamSize() {
         return ramSize;
     }
@@ -209,11 +328,11 @@ public class Server implements IServer, Runnable{
     }
 
     protected Socket getSocketConn() {
-        return socketConn;
+        return socketConn.get();
     }
 
     public void setSocketConn(Socket socketConn) {
-        this.socketConn = socketConn;
+        this.socketConn.set(socketConn);
     }
 
     @Override
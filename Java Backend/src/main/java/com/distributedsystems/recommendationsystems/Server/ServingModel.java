@@ -0,0 +1,90 @@
+package com.distributedsystems.recommendationsystems.Server;
+
+import com.distributedsystems.recommendationsystems.Models.Poi;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.inverse.InvertMatrix;
+
+import java.util.Map;
+
+/**
+ * A version of the model the master serves. Once published it never
+ * changes: the training and the fold in work on matrices of their own
+ * and publish a new version, so a request reads the model once and
+ * answers from it to the end, whatever is published meanwhile. The
+ * matrices are shared with the readers, they must not be written
+ */
+class ServingModel {
+    private final long version;
+    private final INDArray Y;
+
+    /* The POIs every user visited */
+    private final VisitedSets visited;
+
+    /* The best unvisited POIs of every user, of the whole catalog and of every category */
+    private final CandidateLists candidates;
+    private final Map<Poi.POICategoryID, CategoryIndex> categories;
+
+    /* Sessions: the inverse of Y.TY + λI, calculated by the first session that needs it */
+    private volatile INDArray gramInverse;
+
+    ServingModel(long version, INDArray Y, VisitedSets visited,
+                 CandidateLists candidates, Map<Poi.POICategoryID, CategoryIndex> categories) {
+        this.version = version;
+        this.Y = Y;
+        this.visited = visited;
+        this.candidates = candidates;
+        this.categories = categories;
+    }
+
+    /**
+     * @param lambda the regularization
+     * @return the inverse of the regularized gram of the Y
+     */
+    INDArray GetGramInverse(double lambda) {
+        INDArray inverse = gramInverse;
+        if (inverse == null) {
+            synchronized (this) {
+                inverse = gramInverse;
+                if (inverse == null) {
+                    INDArray gram = Y.transpose().mmul(Y);
+                    inverse = InvertMatrix.invert(gram.add(Nd4j.eye(gram.rows()).mul(lambda)), false);
+                    gramInverse = inverse;
+                }
+            }
+        }
+        return inverse;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    INDArray getY() {
+        return Y;
+    }
+
+    VisitedSets getVisited() {
+        return visited;
+    }
+
+    CandidateLists getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * @param category the category
+     * @return the index of the category, null if the model has no POIs of it
+     */
+    CategoryIndex GetCategory(Poi.POICategoryID category) {
+        return categories.get(category);
+    }
+
+    int getUsers() {
+        return candidates.getUsers();
+    }
+
+    int getPois() {
+        return Y.rows();
+    }
+}
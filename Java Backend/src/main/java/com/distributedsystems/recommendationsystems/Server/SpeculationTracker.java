@@ -0,0 +1,116 @@
+package com.distributedsystems.recommendationsystems.Server;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Deadlines of the ranges of a half step. The partitioner balances the
+ * predicted times of the workers, so every range must arrive within a
+ * few times the median predicted time of the half step. The median and
+ * not the own prediction of a worker, since a worker that keeps stalling
+ * is predicted to be slow as well. A range that overruns its deadline is
+ * run once more on a worker that already returned its own range, and
+ * whichever result arrives first is kept.
+ */
+class SpeculationTracker {
+    /* A range overruns when it takes this many times the median predicted time, plus the slack */
+    private final static double DEADLINE_FACTOR = 2;
+    private final static double DEADLINE_SLACK_SEC = 0.5;
+
+    private final int iteration;
+    private final Map<String, Integer[]> workerRanges;
+    private final Map<String, Long> deadlines = new HashMap<>();
+
+    private final Set<String> receivedRanges = new HashSet<>();
+    private final Set<String> speculatedRanges = new HashSet<>();
+    private final Deque<String> idleWorkers = new ArrayDeque<>();
+
+    /**
+     * @param iteration the iteration of the half step
+     * @param workerRanges the start and end index of each worker
+     * @param predictedTimes the predicted seconds of each worker, without them there are no deadlines
+     */
+    SpeculationTracker(int iteration, Map<String, Integer[]> workerRanges, Map<String, Double> predictedTimes) {
+        this.iteration = iteration;
+        this.workerRanges = workerRanges;
+
+        if (predictedTimes.isEmpty()) return;
+
+        List<Double> sortedTimes = new ArrayList<>(predictedTimes.values());
+        Collections.sort(sortedTimes);
+        double medianTime = sortedTimes.get(sortedTimes.size() / 2);
+
+        long deadline = System.nanoTime() + (long) ((DEADLINE_FACTOR * medianTime + DEADLINE_SLACK_SEC) * 1e9);
+        workerRanges.keySet().forEach(workerName -> deadlines.put(workerName, deadline));
+    }
+
+    /**
+     * Marks the range as received, and its sender as idle
+     * @param senderName the worker that sent the range
+     * @param startIndex the start index of the range
+     * @return true if the range had not been received before
+     */
+    synchronized boolean RangeReceived(String senderName, int startIndex) {
+        String ownerName = GetOwner(startIndex);
+        if (!idleWorkers.contains(senderName)) idleWorkers.add(senderName);
+
+        return ownerName == null || receivedRanges.add(ownerName);
+    }
+
+    /**
+     * Checks if the range is the one the worker was given, so that its
+     * execution time measures the worker
+     */
+    synchronized boolean IsOwnRange(String workerName, int startIndex) {
+        return workerName.equals(GetOwner(startIndex));
+    }
+
+    /**
+     * Gives the ranges that overran their deadline to the idle workers
+     * @return the name of each idle worker that got a range, with the range
+     */
+    synchronized List<Map.Entry<String, int[]>> FindSpeculations() {
+        List<Map.Entry<String, int[]>> speculations = new ArrayList<>();
+        long now = System.nanoTime();
+
+        for (Map.Entry<String, Long> deadline : deadlines.entrySet()) {
+            String ownerName = deadline.getKey();
+            if (now < deadline.getValue() ||
+                    receivedRanges.contains(ownerName) ||
+                    speculatedRanges.contains(ownerName)) {
+                continue;
+            }
+
+            String idleWorker = idleWorkers.poll();
+            if (idleWorker == null) break;
+
+            Integer[] range = workerRanges.get(ownerName);
+            speculatedRanges.add(ownerName);
+            speculations.add(new AbstractMap.SimpleEntry<>(idleWorker, new int[]{range[0], range[1]}));
+
+            System.out.println("Range from " + range[0] + " to " + range[1] + " of " + ownerName +
+                    " overran its deadline, running it on " + idleWorker + " too");
+        }
+
+        return speculations;
+    }
+
+    int getIteration() {
+        return iteration;
+    }
+
+    private String GetOwner(int startIndex) {
+        for (Map.Entry<String, Integer[]> range : workerRanges.entrySet()) {
+            if (range.getValue()[0] == startIndex) return range.getKey();
+        }
+        return null;
+    }
+}
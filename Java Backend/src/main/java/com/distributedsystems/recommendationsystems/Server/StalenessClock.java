@@ -0,0 +1,131 @@
+package com.distributedsystems.recommendationsystems.Server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The clocks of the bounded staleness mode. Every worker runs its own
+ * half steps over its own rows against the latest factors of the
+ * master, without waiting for the rest. The clocks count half steps,
+ * and a worker may be at most S iterations (2S half steps) ahead of
+ * the slowest one, so the rows of the others it solves against are at
+ * most S iterations old. With S = 0 every half step ends at a barrier,
+ * exactly like the synchronous modes.
+ */
+class StalenessClock {
+    private final int staleness;
+
+    /* The half step every worker runs, or waits to run: even for the X, odd for the Y */
+    private final Map<String, Integer> clocks = new HashMap<>();
+
+    /* The workers that run their half step, rather than waiting for it */
+    private final Set<String> runningWorkers = new HashSet<>();
+
+    private final HashMap<String, Integer[]> xRanges;
+    private final HashMap<String, Integer[]> yRanges;
+
+    /* Workers that are too far ahead, waiting for the slowest one */
+    private final Set<String> parkedWorkers = new LinkedHashSet<>();
+
+    /**
+     * @param staleness how many iterations a worker may run ahead of the slowest one
+     * @param startIteration the iteration every worker starts from, with its X half step
+     * @param xRanges the X rows of every worker
+     * @param yRanges the Y rows of every worker
+     */
+    StalenessClock(int staleness, int startIteration,
+                   HashMap<String, Integer[]> xRanges, HashMap<String, Integer[]> yRanges) {
+        this.staleness = staleness;
+        this.xRanges = xRanges;
+        this.yRanges = yRanges;
+
+        for (String worker : xRanges.keySet()) {
+            clocks.put(worker, 2 * startIteration);
+        }
+    }
+
+    /**
+     * Checks if the result is of the half step its worker runs
+     * @param worker the name of the worker
+     * @param clock the half step of the result
+     * @param startIndex the first row of the result
+     * @return false for the results of an older half step or older ranges
+     */
+    synchronized boolean IsExpected(String worker, int clock, int startIndex) {
+        Integer workerClock = clocks.get(worker);
+
+        return workerClock != null &&
+                workerClock == clock &&
+                runningWorkers.contains(worker) &&
+                GetRange(worker)[0] == startIndex;
+    }
+
+    /**
+     * Starts the next half step of the worker, if it stays within the
+     * bound, otherwise the worker waits until the slowest one catches up
+     * @param worker the name of the worker
+     * @return true if the worker may run its half step
+     */
+    synchronized boolean TryStart(String worker) {
+        if (clocks.get(worker) - GetMinClock() > 2 * staleness) {
+            parkedWorkers.add(worker);
+            return false;
+        }
+
+        parkedWorkers.remove(worker);
+        runningWorkers.add(worker);
+        return true;
+    }
+
+    /**
+     * Moves the worker to its next half step
+     * @param worker the name of the worker that returned its rows
+     * @return true if the slowest worker finished an iteration
+     */
+    synchronized boolean Tick(String worker) {
+        int minClock = GetMinClock();
+        clocks.merge(worker, 1, Integer::sum);
+        runningWorkers.remove(worker);
+
+        int newMinClock = GetMinClock();
+        return newMinClock > minClock && newMinClock % 2 == 0;
+    }
+
+    /**
+     * @return the waiting workers, to try them again after the slowest one moved
+     */
+    synchronized List<String> getParkedWorkers() {
+        return new ArrayList<>(parkedWorkers);
+    }
+
+    synchronized int GetMinClock() {
+        return clocks.values().stream().mapToInt(Integer::intValue).min().orElse(0);
+    }
+
+    /**
+     * @return the half step the worker runs, or waits to run
+     */
+    synchronized int getClock(String worker) {
+        return clocks.get(worker);
+    }
+
+    /**
+     * @return the rows of the half step the worker runs, or waits to run
+     */
+    synchronized Integer[] GetRange(String worker) {
+        return IsRunningX(worker) ? xRanges.get(worker) : yRanges.get(worker);
+    }
+
+    synchronized boolean IsRunningX(String worker) {
+        return clocks.get(worker) % 2 == 0;
+    }
+
+    synchronized Map<String, Integer> getClocks() {
+        return new HashMap<>(clocks);
+    }
+}
@@ -0,0 +1,188 @@
+package com.distributedsystems.recommendationsystems.Server;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the rows of a matrix to the workers in proportion to how fast
+ * each worker is. Every row has a cost, so a range is measured by its
+ * cost mass instead of its number of rows, and the cost per second of
+ * every worker is estimated with an exponentially weighted moving
+ * average of its execution times. A heterogeneous cluster is balanced
+ * within a few iterations, while a single noisy measurement can not
+ * swing the split. A new split is only used when it is predicted to be
+ * noticeably faster than the previous one, so the ranges do not oscillate.
+ */
+class ThroughputPartitioner {
+    /* The weight of the latest measurement in the estimation */
+    private final static double SMOOTHING = 0.5;
+
+    /* The least predicted gain of a new split over the previous one */
+    private final static double HYSTERESIS = 0.05;
+
+    private final Map<String, Double> throughputs = new HashMap<>();
+
+    /* The latest split: the rows of each worker and their predicted seconds */
+    private List<String> latestWorkerNames;
+    private int[] latestRows;
+    private final Map<String, Double> latestCosts = new HashMap<>();
+    private final Map<String, Double> predictedTimes = new HashMap<>();
+
+    /**
+     * Adds a measurement of a worker to its estimation
+     * @param workerName the name of the worker
+     * @param executionTime the seconds the worker needed for its latest range
+     */
+    void Update(String workerName, double executionTime) {
+        Double cost = latestCosts.get(workerName);
+        if (cost == null || cost <= 0 || executionTime <= 0) return;
+
+        double sample = cost / executionTime;
+        throughputs.merge(workerName, sample,
+                (estimation, latest) -> SMOOTHING * latest + (1 - SMOOTHING) * estimation);
+    }
+
+    /**
+     * Splits the rows to the workers. Until every worker has an estimation
+     * the rows are split by the initial weights of the workers
+     * @param workerNames the names of the workers, in the order of their ranges
+     * @param initialWeights the weight of each worker before any measurement
+     * @param rowCosts the cost of every row
+     * @return the rows of each worker
+     */
+    int[] Partition(List<String> workerNames, List<Double> initialWeights, double[] rowCosts) {
+        int workers = workerNames.size();
+        boolean isEstimated = workerNames.stream().allMatch(throughputs::containsKey);
+
+        double[] weights = new double[workers];
+        for (int i = 0; i < workers; i++) {
+            weights[i] = isEstimated ?
+                    throughputs.get(workerNames.get(i)) :
+                    Math.max(Double.MIN_VALUE, initialWeights.get(i));
+        }
+
+        double[] prefixCosts = new double[rowCosts.length + 1];
+        for (int row = 0; row < rowCosts.length; row++) {
+            prefixCosts[row + 1] = prefixCosts[row] + rowCosts[row];
+        }
+
+        int[] rows = SplitProportionally(weights, prefixCosts);
+
+        /* Keep the previous split, unless the new one is faster enough */
+        boolean isPreviousValid = isEstimated &&
+                workerNames.equals(latestWorkerNames) &&
+                GetTotalRows(latestRows) == rowCosts.length;
+        if (isPreviousValid &&
+                PredictTime(rows, weights, prefixCosts) > (1 - HYSTERESIS) * PredictTime(latestRows, weights, prefixCosts)) {
+            rows = latestRows;
+        }
+
+        /* Remember the split, to measure the workers and to predict their time */
+        latestWorkerNames = workerNames;
+        latestRows = rows;
+        latestCosts.clear();
+        predictedTimes.clear();
+        int startRow = 0;
+        for (int i = 0; i < workers; i++) {
+            double cost = prefixCosts[startRow + rows[i]] - prefixCosts[startRow];
+            latestCosts.put(workerNames.get(i), cost);
+            if (isEstimated) predictedTimes.put(workerNames.get(i), cost / weights[i]);
+            startRow += rows[i];
+        }
+
+        return rows;
+    }
+
+    Double getThroughput(String workerName) {
+        return throughputs.get(workerName);
+    }
+
+    Double getLatestCost(String workerName) {
+        return latestCosts.get(workerName);
+    }
+
+    Double getPredictedTime(String workerName) {
+        return predictedTimes.get(workerName);
+    }
+
+    /**
+     * Splits the rows to contiguous ranges with cost masses proportional
+     * to the weights, giving at least one row to every worker
+     */
+    private static int[] SplitProportionally(double[] weights, double[] prefixCosts) {
+        int workers = weights.length;
+        int totalRows = prefixCosts.length - 1;
+        double totalCost = prefixCosts[totalRows];
+
+        double totalWeight = 0;
+        for (double weight : weights) totalWeight += weight;
+
+        int[] rows = new int[workers];
+        int startRow = 0;
+        double cumulativeWeight = 0;
+        for (int i = 0; i < workers; i++) {
+            cumulativeWeight += weights[i];
+
+            /* No empty ranges, as long as there are enough rows */
+            int minEnd = Math.min(totalRows, startRow + 1);
+            int maxEnd = Math.max(minEnd, totalRows - (workers - 1 - i));
+
+            int endRow;
+            if (i == workers - 1) {
+                endRow = totalRows;
+            } else {
+                endRow = ClosestBoundary(prefixCosts, totalCost * cumulativeWeight / totalWeight);
+                endRow = Math.max(minEnd, Math.min(maxEnd, endRow));
+            }
+
+            rows[i] = endRow - startRow;
+            startRow = endRow;
+        }
+
+        return rows;
+    }
+
+    /**
+     * Finds the row boundary whose prefix cost is the closest to the target
+     */
+    private static int ClosestBoundary(double[] prefixCosts, double target) {
+        int low = 0;
+        int high = prefixCosts.length - 1;
+        while (low < high) {
+            int middle = (low + high) / 2;
+            if (prefixCosts[middle] < target) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        if (low > 0 && target - prefixCosts[low - 1] < prefixCosts[low] - target) {
+            return low - 1;
+        }
+        return low;
+    }
+
+    /**
+     * The time of a half step is the time of its slowest worker
+     */
+    private static double PredictTime(int[] rows, double[] throughputs, double[] prefixCosts) {
+        double time = 0;
+        int startRow = 0;
+        for (int i = 0; i < rows.length; i++) {
+            double cost = prefixCosts[startRow + rows[i]] - prefixCosts[startRow];
+            time = Math.max(time, cost / throughputs[i]);
+            startRow += rows[i];
+        }
+        return time;
+    }
+
+    private static int GetTotalRows(int[] rows) {
+        if (rows == null) return -1;
+
+        int total = 0;
+        for (int row : rows) total += row;
+        return total;
+    }
+}
@@ -0,0 +1,73 @@
+package com.distributedsystems.recommendationsystems.Server;
+
+import java.util.Arrays;
+
+/**
+ * The POIs every user visited, for the rankings to skip them. The POIs of
+ * all the users are kept sorted in flat arrays, the POIs of a user run from
+ * its offset to the offset of the next user, so the model keeps the visits
+ * in the size of the interactions instead of a dense matrix of the dataset
+ */
+class VisitedSets {
+    private final int[] offsets;
+    private final int[] pois;
+
+    private VisitedSets(int[] offsets, int[] pois) {
+        this.offsets = offsets;
+        this.pois = pois;
+    }
+
+    /**
+     * Reads the POIs of some users from the interactions again and copies
+     * the rest from the previous sets. Users that the previous sets do not
+     * have are read whether given or not
+     * @param previous the previous sets, null if there are none
+     * @param store the interactions
+     * @param users the users to read again, in ascending order
+     * @return the new sets
+     */
+    static VisitedSets Update(VisitedSets previous, InteractionStore store, int[] users) {
+        int userCount = store.getUsers();
+        int previousUsers = previous == null ? 0 : previous.getUsers();
+
+        int[][] userPois = new int[userCount][];
+        for (int user : users) {
+            if (user < userCount) userPois[user] = store.GetUserPois(user);
+        }
+        for (int user = previousUsers; user < userCount; user++) {
+            userPois[user] = store.GetUserPois(user);
+        }
+
+        int[] offsets = new int[userCount + 1];
+        for (int user = 0; user < userCount; user++) {
+            int length = userPois[user] != null ? userPois[user].length : previous.offsets[user + 1] - previous.offsets[user];
+            offsets[user + 1] = offsets[user] + length;
+        }
+
+        int[] pois = new int[offsets[userCount]];
+        for (int user = 0; user < userCount; user++) {
+            if (userPois[user] != null) {
+                System.arraycopy(userPois[user], 0, pois, offsets[user], userPois[user].length);
+            } else {
+                System.arraycopy(previous.pois, previous.offsets[user], pois, offsets[user], offsets[user + 1] - offsets[user]);
+            }
+        }
+
+        return new VisitedSets(offsets, pois);
+    }
+
+    int getUsers() {
+        return offsets.length - 1;
+    }
+
+    boolean Contains(int user, int poi) {
+        return Arrays.binarySearch(pois, offsets[user], offsets[user + 1], poi) >= 0;
+    }
+
+    /**
+     * @return the POIs the user visited, in ascending order
+     */
+    int[] GetPois(int user) {
+        return Arrays.copyOfRange(pois, offsets[user], offsets[user + 1]);
+    }
+}
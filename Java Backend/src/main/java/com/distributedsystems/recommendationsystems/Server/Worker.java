@@ -2,15 +2,32 @@ package com.distributedsystems.recommendationsystems.Server;
 
 import com.distributedsystems.recommendationsystems.Abstractions.IWorker;
 import com.distributedsystems.recommendationsystems.Models.CommunicationMessage;
+import com.distributedsystems.recommendationsystems.Models.FactorEncoding;
 import com.distributedsystems.recommendationsystems.Models.MessageType;
+import com.distributedsystems.recommendationsystems.Utils.FactorCodec;
+import com.distributedsystems.recommendationsystems.Utils.FrameUtils;
+import com.distributedsystems.recommendationsystems.Utils.MatrixHelpers;
 import com.distributedsystems.recommendationsystems.Utils.ParserUtils;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
 import org.nd4j.linalg.inverse.InvertMatrix;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
 public class Worker extends Server implements IWorker {
@@ -19,8 +36,55 @@ public class Worker extends Server implements IWorker {
 
     private INDArray X, Y, P, C;
 
+    /* The pois of every user and the users of every poi with an interaction, the only ones a solve depends on */
+    private int[][] userPois, poiUsers;
+
+    /* The rows calculated by the latest half step */
+    private INDArray xSlice, ySlice;
+
+    /* The grams of X and Y, when they were summed from the grams of the slices */
+    private INDArray xGram, yGram;
+
+    /*
+     * Lazy updates: how much every row moved in its latest update, and how much
+     * the rows it interacted with moved since it was last solved. The factors
+     * are compared with the ones of the previous half step
+     */
+    private double[] xRowChanges, yRowChanges;
+    private double[] xRowDrifts, yRowDrifts;
+    private INDArray previousX, previousY;
+    private double updateTolerance;
+
+    /* Slices received from the previous worker of the ring */
+    private final RingExchange ringExchange = new RingExchange();
+    private long ringBytesOnWire;
+
+    /* Pipelined mode: the X and Y of every iteration, assembled chunk by chunk */
+    private final Map<String, FactorAssembly> chunkAssemblies = new HashMap<>();
+
+    /* The latest iterations whose X and whose Y were taken out of their assemblies, their late chunks are dropped */
+    private int finishedXIteration = -1;
+    private int finishedYIteration = -1;
+
+    /* Only one calculation at a time, the ring slices and the chunks are delivered meanwhile */
+    private final Object calculationLock = new Object();
+
+    /* The latest iteration the master aborted, nothing of it is awaited any more */
+    private volatile int abortedIteration = -1;
+
+    /* Tells the master that this worker is alive, with the same details as the hello */
+    private ScheduledExecutorService heartbeatTimer;
+    private double calibratedThroughput;
+
     private final static double L = 0.1;
 
+    /* The size of the calibration, a small version of the real row solves */
+    private final static int CALIBRATION_FACTORS = 64;
+    private final static int CALIBRATION_INTERACTIONS = 32;
+    private final static int CALIBRATION_SOLVES_PER_CORE = 8;
+
+    private final static long HEARTBEAT_PERIOD_MS = 1000;
+
     Worker(String name, String ip, int port){
         this.setName(name);
         this.setIp(ip);
@@ -36,88 +100,251 @@ public class Worker extends Server implements IWorker {
     /**
      * Runnable Implementation
      */
-    public synchronized void run() {
+    public void run() {
+        Socket socket = getSocketConn();
         ObjectInputStream in = null;
         ObjectOutputStream out = null;
         try{
-            out = new ObjectOutputStream(getSocketConn().getOutputStream());
-            in = new ObjectInputStream(getSocketConn().getInputStream());
-
-            CommunicationMessage message = (CommunicationMessage) in.readObject();
+            CommunicationMessage message;
+
+            /* Matrices arrive as binary frames, anything else as objects */
+            PushbackInputStream socketIn = new PushbackInputStream(socket.getInputStream(), FrameUtils.MAGIC_SIZE);
+            byte[] magic = SniffConnection(socketIn);
+            if (FrameUtils.IsFrameMagic(magic)) {
+                message = FrameUtils.ReadMessage(socket.getChannel());
+            } else {
+                socketIn.unread(magic);
+                out = new ObjectOutputStream(socket.getOutputStream());
+                in = new ObjectInputStream(socketIn);
+                message = (CommunicationMessage) in.readObject();
+            }
 
-            CommunicationMessage result = new CommunicationMessage();
-            result.setServerName(getName());
-            result.setRamGBSize((int)getAvailableRamSizeInGB());
-            switch (message.getType()){
-                case TRANSFER_MATRICES:{
-                    C = message.getCArray();
-                    P = message.getPArray();
-                    X = message.getXArray();
-                    Y = message.getYArray();
-
-                    System.out.println("Got the matrices from master!");
-                    return;
-                }
-                case CALCULATE_X:{
-                    Y = message.getYArray();
+            /* Ring slices and chunks must not wait for the running calculation */
+            if (message.getType() == MessageType.RING_SLICE) {
+                ringExchange.Deliver(message);
+                return;
+            }
+            if (message.getType() == MessageType.X_CHUNK || message.getType() == MessageType.Y_CHUNK) {
+                DeliverChunk(message);
+                return;
+            }
+            if (message.getType() == MessageType.RESET) {
+                AbortIteration(message.getIteration());
+                return;
+            }
 
-                    long startTime = System.nanoTime();
-                    CalculateXDerivative(message.getStartIndex(), message.getEndIndex());
-                    double executionTime = ParserUtils.GetTimeInSec(startTime);
+            synchronized (calculationLock) {
+                HandleMessage(message);
+            }
+        }
+        catch (ClassNotFoundException | IOException ignored) {}
+        finally {
+            this.CloseConnections(socket, in, out);
+        }
+    }
 
-                    result.setExecutionTime(executionTime);
-                    result.setType(MessageType.X_CALCULATED);
-                    result.setStartIndex(message.getStartIndex());
-                    result.setEndIndex(message.getEndIndex());
-                    result.setXArray(X);
+    private void HandleMessage(CommunicationMessage message) {
+        updateTolerance = message.getUpdateTolerance();
+
+        CommunicationMessage result = new CommunicationMessage();
+        result.setServerName(getName());
+        result.setIteration(message.getIteration());
+        result.setRamGBSize((int)getAvailableRamSizeInGB());
+        switch (message.getType()){
+            case TRANSFER_MATRICES:{
+                C = message.getCArray();
+                P = message.getPArray();
+                X = message.getXArray();
+                Y = message.getYArray();
+                xGram = null;
+                yGram = null;
+                previousX = null;
+                previousY = null;
+                synchronized (chunkAssemblies) {
+                    chunkAssemblies.clear();
+                }
+                IndexInteractions();
 
-                    System.out.println("Finished X Calculation from :" + message.getStartIndex() + " to " + message.getEndIndex());
-                    break;
+                System.out.println("Got the matrices from master!");
+                return;
+            }
+            case CALCULATE_X:{
+                if (message.getRingAddresses() != null) {
+                    CalculateRingIteration(message);
+                    return;
+                }
+                if (message.getChunkRows() > 0) {
+                    CalculatePipelinedIteration(message);
+                    return;
                 }
-                case CALCULATE_Y:{
-                    X = message.getXArray();
 
-                    long startTime = System.nanoTime();
-                    CalculateYDerivative(message.getStartIndex(), message.getEndIndex());
-                    double executionTime = ParserUtils.GetTimeInSec(startTime);
+                /* Chunks of the work queue come without the factor, which the worker already holds */
+                if (message.getYArray() != null || message.getEncodedYArray() != null) {
+                    Y = message.getYArray() != null ?
+                            message.getYArray() :
+                            FactorCodec.Decode(message.getEncodedYArray(), Y);
+                    yGram = message.getYGramArray();
+                }
 
-                    result.setExecutionTime(executionTime);
-                    result.setType(MessageType.Y_CALCULATED);
-                    result.setStartIndex(message.getStartIndex());
-                    result.setEndIndex(message.getEndIndex());
-                    result.setYArray(Y);
+                /* Only the factor, there are no rows for this worker yet */
+                if (message.getEndIndex() < message.getStartIndex()) return;
+
+                long startTime = System.nanoTime();
+                CalculateXDerivative(message.getStartIndex(), message.getEndIndex());
+                double executionTime = ParserUtils.GetTimeInSec(startTime);
+
+                result.setExecutionTime(executionTime);
+                result.setType(MessageType.X_CALCULATED);
+                result.setStartIndex(message.getStartIndex());
+                result.setEndIndex(message.getEndIndex());
+                if (IsEncodedReply(message)) {
+                    result.setEncodedXArray(FactorCodec.Encode(xSlice,
+                            GetRows(X, message.getStartIndex(), message.getEndIndex()),
+                            message.getFactorEncoding(), message.getDeltaThreshold()));
+                } else {
+                    result.setXArray(xSlice);
+                    result.setXGramArray(PreCalculateXX(xSlice));
+                }
 
-                    System.out.println("Finished Y Calculation from :" + message.getStartIndex() + " to " + message.getEndIndex());
-                    break;
+                System.out.println("Finished X Calculation from :" + message.getStartIndex() + " to " + message.getEndIndex());
+                break;
+            }
+            case CALCULATE_Y:{
+                if (message.getXArray() != null || message.getEncodedXArray() != null) {
+                    X = message.getXArray() != null ?
+                            message.getXArray() :
+                            FactorCodec.Decode(message.getEncodedXArray(), X);
+                    xGram = message.getXGramArray();
                 }
-                default:{
-                    break;
+
+                if (message.getEndIndex() < message.getStartIndex()) return;
+
+                long startTime = System.nanoTime();
+                CalculateYDerivative(message.getStartIndex(), message.getEndIndex());
+                double executionTime = ParserUtils.GetTimeInSec(startTime);
+
+                result.setExecutionTime(executionTime);
+                result.setType(MessageType.Y_CALCULATED);
+                result.setStartIndex(message.getStartIndex());
+                result.setEndIndex(message.getEndIndex());
+                if (IsEncodedReply(message)) {
+                    result.setEncodedYArray(FactorCodec.Encode(ySlice,
+                            GetRows(Y, message.getStartIndex(), message.getEndIndex()),
+                            message.getFactorEncoding(), message.getDeltaThreshold()));
+                } else {
+                    result.setYArray(ySlice);
+                    result.setYGramArray(PreCalculateYY(ySlice));
                 }
-            }
 
-            this.SendCommunicationMessage(result, masterIp, masterPort);
-        }
-        catch (ClassNotFoundException | IOException ignored) {}
-        finally {
-            this.CloseConnections(in, out);
+                System.out.println("Finished Y Calculation from :" + message.getStartIndex() + " to " + message.getEndIndex());
+                break;
+            }
+            case ASK_FACTORS:{
+                result.setType(MessageType.FACTORS_CALCULATED);
+                result.setXArray(X);
+                result.setYArray(Y);
+                break;
+            }
+            default:{
+                return;
+            }
         }
+
+        this.SendCommunicationMessage(result, masterIp, masterPort);
     }
 
     /**
      * IWorker Implementation
      */
     public void Initialize() {
+        calibratedThroughput = CalibrateThroughput();
+
+        this.SendCommunicationMessage(CreateStatusMessage(MessageType.HELLO_WORLD), masterIp, masterPort);
+
+        heartbeatTimer = Executors.newSingleThreadScheduledExecutor();
+        heartbeatTimer.scheduleAtFixedRate(() ->
+                        this.SendCommunicationMessage(CreateStatusMessage(MessageType.HEARTBEAT), masterIp, masterPort),
+                HEARTBEAT_PERIOD_MS, HEARTBEAT_PERIOD_MS, TimeUnit.MILLISECONDS);
+
+        this.OpenServer();
+    }
+
+    /**
+     * Stops the heartbeats and tells the master to give the rows of this worker to the rest
+     */
+    public void Leave() {
+        if (heartbeatTimer != null) heartbeatTimer.shutdownNow();
+
+        CommunicationMessage msg = new CommunicationMessage();
+        msg.setServerName(getName());
+        msg.setType(MessageType.LEAVE);
+        this.SendCommunicationMessage(msg, masterIp, masterPort);
+
+        this.CloseServer();
+    }
+
+    /**
+     * Creates the message the master registers a worker with
+     * @param type HELLO_WORLD or HEARTBEAT
+     * @return the message with the address and the resources of this worker
+     */
+    private CommunicationMessage CreateStatusMessage(MessageType type) {
         CommunicationMessage msg = new CommunicationMessage();
         msg.setServerName(getName());
         msg.setIp(getIp());
         msg.setPort(getPort());
         msg.setCpuCores(getCpuCores());
         msg.setRamGBSize((int)getAvailableRamSizeInGB());
-        msg.setType(MessageType.HELLO_WORLD);
+        msg.setCalibratedThroughput(calibratedThroughput);
+        msg.setFreeHeapBytes(getFreeHeapBytes());
+        msg.setFreeOffHeapBytes(getFreeOffHeapBytes());
+        msg.setType(type);
+        return msg;
+    }
 
-        this.SendCommunicationMessage(msg, masterIp, masterPort);
+    /**
+     * The master gave up an iteration, since a worker left in the middle
+     * of it. Anything waiting for its slices or chunks is released, the
+     * master restarts it with a new number
+     * @param iteration the aborted iteration
+     */
+    private void AbortIteration(int iteration) {
+        abortedIteration = Math.max(abortedIteration, iteration);
+        ringExchange.Abort(iteration);
 
-        this.OpenServer();
+        synchronized (chunkAssemblies) {
+            chunkAssemblies.values().forEach(FactorAssembly::Abort);
+            chunkAssemblies.clear();
+        }
+
+        System.out.println("Iteration " + iteration + " was aborted by the master");
+    }
+
+    /**
+     * Measures how fast this worker solves rows, running the real solve on
+     * random factors in parallel, like the rows of a range are solved
+     * @return the cost per second, in the nnz * K^2 + K^3 units of the master
+     */
+    private double CalibrateThroughput() {
+        INDArray factors = Nd4j.rand(CALIBRATION_INTERACTIONS, CALIBRATION_FACTORS);
+        INDArray gram = PreCalculateYY(factors);
+        int[] interactions = IntStream.range(0, CALIBRATION_INTERACTIONS).toArray();
+        double[] confidences = new double[CALIBRATION_INTERACTIONS];
+        /* The confidence of a single check in */
+        Arrays.fill(confidences, 1 + MatrixHelpers.ALPHA);
+
+        /* Warm up, the first solve loads the native code */
+        CalculateSparseDerivative(factors, interactions, confidences, gram);
+
+        int solves = CALIBRATION_SOLVES_PER_CORE * getCpuCores();
+        long startTime = System.nanoTime();
+        IntStream.range(0, solves).parallel().forEach(solve ->
+                CalculateSparseDerivative(factors, interactions, confidences, gram));
+        double executionTime = (System.nanoTime() - startTime) / 1e9;
+
+        double K = CALIBRATION_FACTORS;
+        double solveCost = CALIBRATION_INTERACTIONS * K * K + K * K * K;
+        return solves * solveCost / executionTime;
     }
 
     public INDArray CalculateCuMatrix(int user, INDArray C) {
@@ -140,31 +367,504 @@ public class Worker extends Server implements IWorker {
      * Helper Methods
      */
     public void CalculateXDerivative(int startIndex, int endIndex){
-        /* Initialize the X with length rows */
-        X = Nd4j.zeros(endIndex - startIndex + 1, X.columns());
+        xSlice = CalculateXRows(startIndex, endIndex, GetYGram());
+    }
 
-        INDArray YY = PreCalculateYY(Y);
+    public void CalculateYDerivative(int startIndex, int endIndex){
+        ySlice = CalculateYRows(startIndex, endIndex, GetXGram());
+    }
+
+    /**
+     * The gram of the whole matrix is calculated here only when nobody
+     * summed it from the grams of the slices
+     */
+    private INDArray GetXGram() {
+        if (xGram == null) xGram = PreCalculateXX(X);
+        return xGram;
+    }
+
+    private INDArray GetYGram() {
+        if (yGram == null) yGram = PreCalculateYY(Y);
+        return yGram;
+    }
+
+    private INDArray CalculateXRows(int startIndex, int endIndex, INDArray YY) {
+        TrackChanges();
+
+        /* Initialize the X slice with length rows */
+        INDArray slice = Nd4j.zeros(endIndex - startIndex + 1, Y.columns());
+        AtomicInteger solvedRows = new AtomicInteger();
 
         /* Run the calculation for each user in parallel */
         IntStream.range(startIndex, endIndex + 1).parallel().forEach((user) -> {
-            INDArray Cu = CalculateCuMatrix(user, C);
-            INDArray Pu = P.getRow(user);
-            X.putRow(user - startIndex, CalculateDerivative(Y, Pu, Cu, YY));
+            /* A converged user keeps its row */
+            if (!IsRowOutdated(user, xRowChanges, xRowDrifts)) {
+                slice.putRow(user - startIndex, X.getRow(user));
+                return;
+            }
+
+            int[] pois = userPois[user];
+            double[] confidences = new double[pois.length];
+            for (int i = 0; i < pois.length; i++) confidences[i] = C.getDouble(user, pois[i]);
+
+            slice.putRow(user - startIndex, CalculateSparseDerivative(Y, pois, confidences, YY));
+            xRowDrifts[user] = 0;
+            solvedRows.incrementAndGet();
         });
+
+        PrintSolvedRows(solvedRows.get(), slice.rows());
+        return slice;
     }
 
-    public void CalculateYDerivative(int startIndex, int endIndex){
-        /* Initialize the Y with length rows */
-        Y = Nd4j.zeros(endIndex - startIndex + 1, Y.columns());
+    private INDArray CalculateYRows(int startIndex, int endIndex, INDArray XX) {
+        TrackChanges();
 
-        INDArray XX = PreCalculateXX(X);
+        /* Initialize the Y slice with length rows */
+        INDArray slice = Nd4j.zeros(endIndex - startIndex + 1, X.columns());
+        AtomicInteger solvedRows = new AtomicInteger();
 
         /* Run the calculation for each poi in parallel */
         IntStream.range(startIndex, endIndex + 1).parallel().forEach((poi) -> {
-            INDArray Ci = CalculateCiMatrix(poi, C);
-            INDArray Pi = P.getColumn(poi).transpose();
-            Y.putRow(poi - startIndex, CalculateDerivative(X, Pi, Ci, XX));
+            /* A converged poi keeps its row */
+            if (!IsRowOutdated(poi, yRowChanges, yRowDrifts)) {
+                slice.putRow(poi - startIndex, Y.getRow(poi));
+                return;
+            }
+
+            int[] users = poiUsers[poi];
+            double[] confidences = new double[users.length];
+            for (int u = 0; u < users.length; u++) confidences[u] = C.getDouble(users[u], poi);
+
+            slice.putRow(poi - startIndex, CalculateSparseDerivative(X, users, confidences, XX));
+            yRowDrifts[poi] = 0;
+            solvedRows.incrementAndGet();
         });
+
+        PrintSolvedRows(solvedRows.get(), slice.rows());
+        return slice;
+    }
+
+    /**
+     * Lazy updates: a row is solved again only if it moved more than the
+     * tolerance in its latest update, or the rows it interacted with
+     * moved more than the tolerance since it was last solved. A zero
+     * tolerance is a full sweep, which solves every row
+     * @param row the user or the poi
+     * @param rowChanges how much every row moved in its latest update
+     * @param rowDrifts how much the interactions of every row moved since it was solved
+     * @return true if the row must be solved
+     */
+    private boolean IsRowOutdated(int row, double[] rowChanges, double[] rowDrifts) {
+        return updateTolerance <= 0 ||
+                rowChanges[row] > updateTolerance ||
+                rowDrifts[row] > updateTolerance;
+    }
+
+    /**
+     * Compares the factors with the ones of the previous half step, when
+     * they changed. The change of every X row adds up to the drift of the
+     * pois it interacted with, and the change of every Y row to the drift
+     * of its users. Without previous factors everything is outdated
+     */
+    private void TrackChanges() {
+        if (previousX != X) {
+            xRowChanges = GetRowChanges(X, previousX);
+            yRowDrifts = AddDrifts(yRowDrifts, xRowChanges, poiUsers, previousX == null);
+            previousX = X;
+        }
+
+        if (previousY != Y) {
+            yRowChanges = GetRowChanges(Y, previousY);
+            xRowDrifts = AddDrifts(xRowDrifts, yRowChanges, userPois, previousY == null);
+            previousY = Y;
+        }
+    }
+
+    /**
+     * @return the largest change of every row, infinite without previous factors
+     */
+    private static double[] GetRowChanges(INDArray matrix, INDArray previous) {
+        double[] changes = new double[matrix.rows()];
+        if (previous == null || previous.rows() != matrix.rows()) {
+            Arrays.fill(changes, Double.POSITIVE_INFINITY);
+            return changes;
+        }
+
+        int columns = matrix.columns();
+        double[] values = matrix.dup('c').data().asDouble();
+        double[] previousValues = previous.dup('c').data().asDouble();
+        for (int r = 0; r < changes.length; r++) {
+            for (int c = 0; c < columns; c++) {
+                int e = r * columns + c;
+                changes[r] = Math.max(changes[r], Math.abs(values[e] - previousValues[e]));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * @param drifts the drift of every row of the opposite matrix
+     * @param changes the change of every row of the changed matrix
+     * @param interactions the rows of the changed matrix every row of the opposite one interacted with
+     * @param isReset if the drifts start over as infinite
+     * @return the drifts plus the largest change of the interactions of every row
+     */
+    private static double[] AddDrifts(double[] drifts, double[] changes, int[][] interactions, boolean isReset) {
+        if (isReset || drifts == null || drifts.length != interactions.length) {
+            drifts = new double[interactions.length];
+            Arrays.fill(drifts, Double.POSITIVE_INFINITY);
+            return drifts;
+        }
+
+        for (int row = 0; row < interactions.length; row++) {
+            double largestChange = 0;
+            for (int interaction : interactions[row]) {
+                largestChange = Math.max(largestChange, changes[interaction]);
+            }
+            drifts[row] += largestChange;
+        }
+        return drifts;
+    }
+
+    private void PrintSolvedRows(int solvedRows, int rows) {
+        if (updateTolerance > 0) {
+            System.out.println("Solved " + solvedRows + " of " + rows + " rows, the rest converged");
+        }
+    }
+
+    /**
+     * Runs a whole iteration without the master in between. The X and Y
+     * slices are exchanged with the rest workers through a ring all-gather
+     * and only the partial error is reported to the master
+     * @param message the CALCULATE_X message with the ring and the ranges of every rank
+     */
+    private void CalculateRingIteration(CommunicationMessage message) {
+        int rank = message.getWorkerRank();
+        int[] xIndexes = message.getXIndexes();
+        int[] yIndexes = message.getYIndexes();
+
+        try {
+            ringBytesOnWire = 0;
+
+            long startTime = System.nanoTime();
+            CalculateXDerivative(xIndexes[2 * rank], xIndexes[2 * rank + 1]);
+            double xExecutionTime = ParserUtils.GetTimeInSec(startTime);
+
+            FactorAssembly gatheredX = RingAllGather(xSlice, X.rows(), xIndexes, message, true);
+            if (gatheredX == null) return;
+            X = gatheredX.getMatrix();
+            xGram = gatheredX.getGram();
+
+            startTime = System.nanoTime();
+            CalculateYDerivative(yIndexes[2 * rank], yIndexes[2 * rank + 1]);
+            double yExecutionTime = ParserUtils.GetTimeInSec(startTime);
+
+            FactorAssembly gatheredY = RingAllGather(ySlice, Y.rows(), yIndexes, message, false);
+            if (gatheredY == null) return;
+            Y = gatheredY.getMatrix();
+            yGram = gatheredY.getGram();
+
+            CommunicationMessage result = new CommunicationMessage();
+            result.setType(MessageType.ITERATION_CALCULATED);
+            result.setServerName(getName());
+            result.setIteration(message.getIteration());
+            result.setExecutionTime(xExecutionTime);
+            result.setYExecutionTime(yExecutionTime);
+            result.setBytesOnWire(ringBytesOnWire);
+            result.setPartialError(CalculatePartialError(
+                    xIndexes[2 * rank], xIndexes[2 * rank + 1],
+                    yIndexes[2 * rank], yIndexes[2 * rank + 1]));
+
+            System.out.println("Finished Ring Iteration " + message.getIteration() + " as rank " + rank);
+
+            this.SendCommunicationMessage(result, masterIp, masterPort);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Ring all-gather: in each of the W - 1 steps, the latest slice is
+     * forwarded to the next worker and a new one is awaited from the
+     * previous worker, so every link carries (W - 1) / W of the matrix.
+     * Every slice travels with the gram of its rows, so the gram of the
+     * whole matrix is all-reduced along with it
+     * @param ownSlice the rows calculated by this worker
+     * @param rows the rows of the whole matrix
+     * @param indexes the start and end index of every rank
+     * @param message the CALCULATE_X message of the iteration
+     * @param isX if the gathered matrix is the X or the Y
+     * @return the whole matrix and its gram, or null if the iteration was aborted
+     */
+    private FactorAssembly RingAllGather(INDArray ownSlice, int rows, int[] indexes,
+                                         CommunicationMessage message, boolean isX) throws InterruptedException {
+        List<String> addresses = message.getRingAddresses();
+        int workers = addresses.size();
+        int rank = message.getWorkerRank();
+
+        FactorAssembly gathered = new FactorAssembly(message.getIteration(), rows, ownSlice.columns(), true);
+        INDArray ownGram = ownSlice.transpose().mmul(ownSlice);
+        gathered.PutRows(indexes[2 * rank], ownSlice);
+        gathered.AddGram(ownGram);
+
+        String[] next = addresses.get((rank + 1) % workers).split(":");
+
+        INDArray outgoing = ownSlice;
+        INDArray outgoingGram = ownGram;
+        int outgoingRank = rank;
+        for (int step = 0; step < workers - 1; step++) {
+            CommunicationMessage slice = new CommunicationMessage();
+            slice.setType(MessageType.RING_SLICE);
+            slice.setServerName(getName());
+            slice.setIteration(message.getIteration());
+            slice.setStartIndex(indexes[2 * outgoingRank]);
+            slice.setEndIndex(indexes[2 * outgoingRank + 1]);
+            if (isX) {
+                slice.setXArray(outgoing);
+                slice.setXGramArray(outgoingGram);
+            } else {
+                slice.setYArray(outgoing);
+                slice.setYGramArray(outgoingGram);
+            }
+            ringBytesOnWire += this.SendFrameMessage(slice, next[0], Integer.parseInt(next[1]));
+
+            int incomingRank = (rank - step - 1 + workers) % workers;
+            CommunicationMessage incoming = ringExchange.Await(
+                    message.getIteration(), isX, indexes[2 * incomingRank]);
+            if (incoming == null) return null;
+
+            outgoing = isX ? incoming.getXArray() : incoming.getYArray();
+            outgoingGram = isX ? incoming.getXGramArray() : incoming.getYGramArray();
+            outgoingRank = incomingRank;
+            gathered.PutRows(indexes[2 * incomingRank], outgoing);
+            gathered.AddGram(outgoingGram);
+        }
+
+        return gathered;
+    }
+
+    /**
+     * Runs a whole iteration as a pipeline of chunks. Every chunk of rows
+     * is sent to the master as soon as it is solved, which forwards it to
+     * the rest workers right away, so the matrix and its gram are
+     * assembled while the workers still calculate. The Y half starts the
+     * moment the last X chunk lands, without waiting for the master
+     * @param message the CALCULATE_X message with the ranges of every rank and the chunk size
+     */
+    private void CalculatePipelinedIteration(CommunicationMessage message) {
+        int rank = message.getWorkerRank();
+        int iteration = message.getIteration();
+        int[] xIndexes = message.getXIndexes();
+        int[] yIndexes = message.getYIndexes();
+
+        try {
+            /*
+             * The Y of the previous iteration is assembled from its chunks, the first one is transferred.
+             * Its last chunk may still be on its way, so it is removed only after it is complete
+             */
+            FactorAssembly previousY = FindChunkAssembly(iteration - 1, false);
+            if (previousY != null) {
+                if (!previousY.AwaitComplete()) return;
+                RemoveChunkAssembly(iteration - 1, false);
+                Y = previousY.getMatrix();
+                yGram = previousY.getGram();
+            }
+
+            CalculateChunks(xIndexes[2 * rank], xIndexes[2 * rank + 1], message, true, GetYGram());
+
+            FactorAssembly xAssembly = GetChunkAssembly(iteration, true);
+            if (xAssembly == null || !xAssembly.AwaitComplete()) return;
+            RemoveChunkAssembly(iteration, true);
+            X = xAssembly.getMatrix();
+            xGram = xAssembly.getGram();
+
+            CalculateChunks(yIndexes[2 * rank], yIndexes[2 * rank + 1], message, false, GetXGram());
+
+            System.out.println("Finished Pipelined Iteration " + iteration + " as rank " + rank);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Solves the rows of the range chunk by chunk, keeps every chunk in
+     * the assembly of this worker and streams it to the master
+     * @param startIndex the first row of the range
+     * @param endIndex the last row of the range
+     * @param message the CALCULATE_X message of the iteration
+     * @param isX if the solved matrix is the X or the Y
+     * @param gram the gram of the fixed matrix
+     */
+    private void CalculateChunks(int startIndex, int endIndex, CommunicationMessage message,
+                                 boolean isX, INDArray gram) {
+        FactorAssembly assembly = GetChunkAssembly(message.getIteration(), isX);
+        if (assembly == null) return;
+
+        for (int chunkStart = startIndex; chunkStart <= endIndex; chunkStart += message.getChunkRows()) {
+            int chunkEnd = Math.min(chunkStart + message.getChunkRows() - 1, endIndex);
+
+            long startTime = System.nanoTime();
+            INDArray rows = isX ?
+                    CalculateXRows(chunkStart, chunkEnd, gram) :
+                    CalculateYRows(chunkStart, chunkEnd, gram);
+            double executionTime = ParserUtils.GetTimeInSec(startTime);
+
+            INDArray rowsGram = rows.transpose().mmul(rows);
+            if (assembly.Claim(chunkStart, chunkEnd)) {
+                assembly.PutRows(chunkStart, rows);
+                assembly.AddGram(rowsGram);
+                assembly.MarkReceived(chunkStart, chunkEnd);
+            }
+
+            CommunicationMessage chunk = new CommunicationMessage();
+            chunk.setType(isX ? MessageType.X_CHUNK : MessageType.Y_CHUNK);
+            chunk.setServerName(getName());
+            chunk.setIteration(message.getIteration());
+            chunk.setStartIndex(chunkStart);
+            chunk.setEndIndex(chunkEnd);
+            chunk.setExecutionTime(executionTime);
+            if (isX) {
+                chunk.setXArray(rows);
+                chunk.setXGramArray(rowsGram);
+            } else {
+                chunk.setYArray(rows);
+                chunk.setYGramArray(rowsGram);
+            }
+            this.SendFrameMessage(chunk, masterIp, masterPort);
+        }
+    }
+
+    /**
+     * Places a chunk another worker calculated, forwarded by the master
+     * @param chunk the X_CHUNK or Y_CHUNK message
+     */
+    private void DeliverChunk(CommunicationMessage chunk) {
+        boolean isX = chunk.getType() == MessageType.X_CHUNK;
+        INDArray rows = isX ? chunk.getXArray() : chunk.getYArray();
+
+        /* A chunk calculated twice is summed to the gram only once */
+        FactorAssembly assembly = GetChunkAssembly(chunk.getIteration(), isX);
+        if (assembly == null || !assembly.Claim(chunk.getStartIndex(), chunk.getEndIndex())) return;
+
+        assembly.PutRows(chunk.getStartIndex(), rows);
+        assembly.AddGram(isX ? chunk.getXGramArray() : chunk.getYGramArray());
+        assembly.MarkReceived(chunk.getStartIndex(), chunk.getEndIndex());
+    }
+
+    /**
+     * Returns the assembly of the matrix of the iteration, created on the
+     * first chunk, since chunks may arrive before their CALCULATE_X
+     * @return the assembly, or null if the iteration was aborted or its
+     * matrix was already taken, since nothing of it is placed any more
+     */
+    private FactorAssembly GetChunkAssembly(int iteration, boolean isX) {
+        if (iteration <= abortedIteration) return null;
+
+        synchronized (chunkAssemblies) {
+            if (iteration <= (isX ? finishedXIteration : finishedYIteration)) return null;
+            return chunkAssemblies.computeIfAbsent(GetChunkKey(iteration, isX), key ->
+                    new FactorAssembly(iteration, isX ? X.rows() : Y.rows(), X.columns(), true));
+        }
+    }
+
+    private FactorAssembly FindChunkAssembly(int iteration, boolean isX) {
+        synchronized (chunkAssemblies) {
+            return chunkAssemblies.get(GetChunkKey(iteration, isX));
+        }
+    }
+
+    private FactorAssembly RemoveChunkAssembly(int iteration, boolean isX) {
+        synchronized (chunkAssemblies) {
+            if (isX) {
+                finishedXIteration = Math.max(finishedXIteration, iteration);
+            } else {
+                finishedYIteration = Math.max(finishedYIteration, iteration);
+            }
+            return chunkAssemblies.remove(GetChunkKey(iteration, isX));
+        }
+    }
+
+    private static String GetChunkKey(int iteration, boolean isX) {
+        return iteration + (isX ? "X" : "Y");
+    }
+
+    /**
+     * Calculates the part of the error the rows of this worker contribute
+     * @return the least squares of the X rows plus the normalization of the X and Y rows
+     */
+    private double CalculatePartialError(int xStartIndex, int xEndIndex, int yStartIndex, int yEndIndex) {
+        INDArrayIndex users = NDArrayIndex.interval(xStartIndex, xEndIndex + 1);
+        INDArrayIndex pois = NDArrayIndex.interval(yStartIndex, yEndIndex + 1);
+
+        INDArray Xu = X.get(users, NDArrayIndex.all());
+        INDArray Yi = Y.get(pois, NDArrayIndex.all());
+
+        /* Compute the least square distance for every element of the rows */
+        INDArray temp = Xu.mmul(Y.transpose());
+        temp.subi(P.get(users, NDArrayIndex.all()));
+        temp.muli(temp);
+        temp.muli(C.get(users, NDArrayIndex.all()));
+
+        double norma = Xu.mul(Xu).sumNumber().doubleValue() + Yi.mul(Yi).sumNumber().doubleValue();
+
+        return temp.sumNumber().doubleValue() + L * norma;
+    }
+
+    /**
+     * Checks if the master asked for an encoded reply
+     * @param message the CALCULATE message of the master
+     * @return true if the slice must be encoded
+     */
+    private boolean IsEncodedReply(CommunicationMessage message) {
+        return message.getFactorEncoding() != null &&
+                (message.getFactorEncoding() != FactorEncoding.RAW || message.getDeltaThreshold() > 0);
+    }
+
+    private INDArray GetRows(INDArray matrix, int startIndex, int endIndex) {
+        return matrix.get(NDArrayIndex.interval(startIndex, endIndex + 1), NDArrayIndex.all());
+    }
+
+    /**
+     * Same as CalculateDerivative, but only over the interactions of the row.
+     * Cu - I and Pu are zero everywhere else, so the result is the same
+     * while the cost is nnz * K^2 + K^3 instead of N * K^2 + K^3
+     * @param matrix the fixed factor matrix
+     * @param interactions the rows of the matrix the row interacted with
+     * @param confidences the confidence of every interaction
+     * @param YY the gram of the fixed factor matrix
+     * @return the new row
+     */
+    public INDArray CalculateSparseDerivative(INDArray matrix, int[] interactions, double[] confidences, INDArray YY) {
+        return MatrixHelpers.SolveFactorRow(matrix, interactions, confidences, YY, L);
+    }
+
+    /**
+     * Finds the interactions of every user and poi from the P matrix
+     */
+    private void IndexInteractions() {
+        int users = P.rows();
+        int pois = P.columns();
+        double[] p = P.dup('c').data().asDouble();
+
+        List<List<Integer>> usersOfPois = new ArrayList<>();
+        for (int poi = 0; poi < pois; poi++) usersOfPois.add(new ArrayList<>());
+
+        userPois = new int[users][];
+        for (int user = 0; user < users; user++) {
+            List<Integer> poisOfUser = new ArrayList<>();
+            for (int poi = 0; poi < pois; poi++) {
+                if (p[user * pois + poi] > 0) {
+                    poisOfUser.add(poi);
+                    usersOfPois.get(poi).add(user);
+                }
+            }
+            userPois[user] = poisOfUser.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        poiUsers = new int[pois][];
+        for (int poi = 0; poi < pois; poi++) {
+            poiUsers[poi] = usersOfPois.get(poi).stream().mapToInt(Integer::intValue).toArray();
+        }
     }
 
     public INDArray CalculateDerivative(INDArray matrix, INDArray Pu, INDArray Cu, INDArray YY) {
@@ -196,6 +896,8 @@ public class Worker extends Server implements IWorker {
                 "\n" + "IP: " + getIp() + ":" + getPort() +
                 "\n" + "Available CPU Cores: " + getInstanceCpuCores() +
                 "\n" + "Available Ram Size " + getInstanceRamSize() + "GB" +
+                "\n" + "Free Memory " + getInstanceFreeMemory() / 1024 / 1024 + "MB" +
+                "\n" + "Calibrated Throughput " + String.format("%.3g", getInstanceThroughput()) + "/sec" +
                 "\n" + "**************************************";
     }
 }
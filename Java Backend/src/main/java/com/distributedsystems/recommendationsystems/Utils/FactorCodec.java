@@ -0,0 +1,242 @@
+package com.distributedsystems.recommendationsystems.Utils;
+
+import com.distributedsystems.recommendationsystems.Models.EncodedMatrix;
+import com.distributedsystems.recommendationsystems.Models.FactorEncoding;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Compact encodings of the factor matrices, relative to a reference
+ * matrix that both sides of the connection hold.
+ *
+ * Payload layout (little endian):
+ *   encoding    byte, the FactorEncoding ordinal
+ *   flags       byte, FLAG_DELTA and FLAG_DOUBLE
+ *   row mask    (rows + 7) / 8 bytes, only for deltas
+ *   rows        every sent row: RAW values, FLOAT16 halves or
+ *               an INT8 float scale followed by the bytes
+ *
+ * Deltas skip the rows that moved less than the threshold from the
+ * reference and quantize the difference instead of the value.
+ */
+public class FactorCodec {
+    private final static byte FLAG_DELTA = 1;
+    private final static byte FLAG_DOUBLE = 2;
+
+    /**
+     * Encodes the matrix
+     * @param matrix the matrix to encode
+     * @param reference the rows the receiver holds for the same indexes, or null
+     * @param encoding how to encode the values
+     * @param deltaThreshold the change under which a row is skipped, zero sends every row
+     * @return the encoded matrix
+     */
+    public static EncodedMatrix Encode(INDArray matrix, INDArray reference,
+                                       FactorEncoding encoding, double deltaThreshold) {
+        int rows = matrix.rows();
+        int columns = matrix.columns();
+        boolean isDelta = reference != null && deltaThreshold > 0;
+        boolean isDouble = matrix.data().dataType() == DataBuffer.Type.DOUBLE;
+
+        double[] values = AsDoubles(matrix);
+        double[] base = isDelta ? AsDoubles(reference) : null;
+
+        int rowBytes = GetRowBytes(encoding, columns, isDouble);
+        int maskBytes = isDelta ? (rows + 7) / 8 : 0;
+        ByteBuffer payload = ByteBuffer
+                .allocate(2 + maskBytes + rows * rowBytes)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        payload.put((byte) encoding.ordinal());
+        payload.put((byte) ((isDelta ? FLAG_DELTA : 0) | (isDouble ? FLAG_DOUBLE : 0)));
+
+        /* Find the rows that moved enough to be sent */
+        boolean[] isRowSent = new boolean[rows];
+        for (int r = 0; r < rows; r++) {
+            isRowSent[r] = !isDelta;
+            for (int c = 0; c < columns && !isRowSent[r]; c++) {
+                int e = r * columns + c;
+                isRowSent[r] = Math.abs(values[e] - base[e]) >= deltaThreshold;
+            }
+        }
+
+        if (isDelta) {
+            byte[] mask = new byte[maskBytes];
+            for (int r = 0; r < rows; r++) {
+                if (isRowSent[r]) mask[r / 8] |= 1 << (r % 8);
+            }
+            payload.put(mask);
+        }
+
+        for (int r = 0; r < rows; r++) {
+            if (!isRowSent[r]) continue;
+
+            int offset = r * columns;
+            switch (encoding) {
+                case RAW: {
+                    for (int c = 0; c < columns; c++) {
+                        if (isDouble) {
+                            payload.putDouble(values[offset + c]);
+                        } else {
+                            payload.putFloat((float) values[offset + c]);
+                        }
+                    }
+                    break;
+                }
+                case FLOAT16: {
+                    for (int c = 0; c < columns; c++) {
+                        double value = values[offset + c] - (isDelta ? base[offset + c] : 0);
+                        payload.putShort(FloatToHalf((float) value));
+                    }
+                    break;
+                }
+                case INT8: {
+                    double maxAbs = 0;
+                    for (int c = 0; c < columns; c++) {
+                        double value = values[offset + c] - (isDelta ? base[offset + c] : 0);
+                        maxAbs = Math.max(maxAbs, Math.abs(value));
+                    }
+
+                    float scale = (float) (maxAbs / Byte.MAX_VALUE);
+                    payload.putFloat(scale);
+                    for (int c = 0; c < columns; c++) {
+                        double value = values[offset + c] - (isDelta ? base[offset + c] : 0);
+                        payload.put(scale == 0 ? 0 : (byte) Math.round(value / scale));
+                    }
+                    break;
+                }
+            }
+        }
+
+        payload.flip();
+        return new EncodedMatrix(rows, columns, payload);
+    }
+
+    /**
+     * Decodes the matrix. The sender must use the same function on its
+     * copy of the reference, so that both sides hold identical values
+     * @param encoded the encoded matrix
+     * @param reference the rows the receiver holds for the same indexes, needed by deltas
+     * @return the decoded matrix
+     */
+    public static INDArray Decode(EncodedMatrix encoded, INDArray reference) {
+        int rows = encoded.getRows();
+        int columns = encoded.getColumns();
+
+        ByteBuffer payload = encoded.getPayload().duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        FactorEncoding encoding = FactorEncoding.values()[payload.get()];
+        byte flags = payload.get();
+        boolean isDelta = (flags & FLAG_DELTA) != 0;
+        boolean isDouble = (flags & FLAG_DOUBLE) != 0;
+
+        if (isDelta && reference == null) {
+            throw new IllegalArgumentException("A delta can not be decoded without its reference");
+        }
+
+        double[] base = isDelta ? AsDoubles(reference) : new double[rows * columns];
+        double[] values = new double[rows * columns];
+
+        byte[] mask = null;
+        if (isDelta) {
+            mask = new byte[(rows + 7) / 8];
+            payload.get(mask);
+        }
+
+        for (int r = 0; r < rows; r++) {
+            int offset = r * columns;
+
+            boolean isRowSent = mask == null || (mask[r / 8] & (1 << (r % 8))) != 0;
+            if (!isRowSent) {
+                System.arraycopy(base, offset, values, offset, columns);
+                continue;
+            }
+
+            switch (encoding) {
+                case RAW: {
+                    for (int c = 0; c < columns; c++) {
+                        values[offset + c] = isDouble ? payload.getDouble() : payload.getFloat();
+                    }
+                    break;
+                }
+                case FLOAT16: {
+                    for (int c = 0; c < columns; c++) {
+                        values[offset + c] = base[offset + c] + HalfToFloat(payload.getShort());
+                    }
+                    break;
+                }
+                case INT8: {
+                    float scale = payload.getFloat();
+                    for (int c = 0; c < columns; c++) {
+                        values[offset + c] = base[offset + c] + payload.get() * (double) scale;
+                    }
+                    break;
+                }
+            }
+        }
+
+        return Nd4j.create(values, new int[]{rows, columns}, 'c');
+    }
+
+    private static int GetRowBytes(FactorEncoding encoding, int columns, boolean isDouble) {
+        switch (encoding) {
+            case FLOAT16: return 2 * columns;
+            case INT8: return 4 + columns;
+            default: return (isDouble ? 8 : 4) * columns;
+        }
+    }
+
+    private static double[] AsDoubles(INDArray matrix) {
+        return matrix.dup('c').data().asDouble();
+    }
+
+    /**
+     * IEEE 754 half precision conversions, rounding to the nearest
+     */
+    private static short FloatToHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+        int mantissa = bits & 0x7fffff;
+
+        /* NaN and infinity */
+        if (exponent >= 0x1f) {
+            boolean isNaN = ((bits >>> 23) & 0xff) == 0xff && mantissa != 0;
+            return (short) (sign | 0x7c00 | (isNaN ? 0x200 : 0));
+        }
+
+        /* Subnormal or zero */
+        if (exponent <= 0) {
+            if (exponent < -10) return (short) sign;
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            if (((mantissa >> (shift - 1)) & 1) != 0) half++;
+            return (short) (sign | half);
+        }
+
+        int half = sign | (exponent << 10) | (mantissa >> 13);
+        if ((mantissa & 0x1000) != 0) half++;
+        return (short) half;
+    }
+
+    private static float HalfToFloat(short half) {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+
+        if (exponent == 0) {
+            /* Subnormal or zero */
+            float value = mantissa / 1024f / 16384f;
+            return sign == 0 ? value : -value;
+        }
+        if (exponent == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
@@ -0,0 +1,539 @@
+package com.distributedsystems.recommendationsystems.Utils;
+
+import com.distributedsystems.recommendationsystems.Abstractions.IFrameTarget;
+import com.distributedsystems.recommendationsystems.Models.CommunicationMessage;
+import com.distributedsystems.recommendationsystems.Models.EncodedMatrix;
+import com.distributedsystems.recommendationsystems.Models.MessageType;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Length prefixed binary frames for the messages that carry matrices.
+ *
+ * Layout (everything little endian):
+ *   header      magic, version, type, block count, iteration,
+ *               start index, end index, execution time,
+ *               update tolerance, name length
+ *   name        UTF-8 bytes of the server name
+ *   descriptors slot, data type, flags, rows, columns, payload bytes per block
+ *   payloads    the raw matrix data of every block, row major, or the
+ *               opaque payload of the FactorCodec for encoded blocks
+ */
+public class FrameUtils {
+    /* "DSFR" when read as a little endian int */
+    public final static int FRAME_MAGIC = 0x52465344;
+    public final static int MAGIC_SIZE = 4;
+
+    private final static byte FRAME_VERSION = 2;
+
+    private final static int HEADER_SIZE = 40;
+    private final static int DESCRIPTOR_SIZE = 16;
+
+    /* The matrix slots of the message */
+    private final static byte SLOT_C = 0;
+    private final static byte SLOT_P = 1;
+    private final static byte SLOT_X = 2;
+    private final static byte SLOT_Y = 3;
+    private final static byte SLOT_X_GRAM = 4;
+    private final static byte SLOT_Y_GRAM = 5;
+
+    /* The data types of the payloads */
+    private final static byte DTYPE_FLOAT = 0;
+    private final static byte DTYPE_DOUBLE = 1;
+
+    /* The flags of the blocks */
+    private final static byte FLAG_ENCODED = 1;
+
+    /* The limits of what a frame may announce, it is allocated before its bytes arrive */
+    private final static int MAX_BLOCKS = SLOT_Y_GRAM + 1;
+    private final static int MAX_NAME_LENGTH = 1024;
+    private final static int MAX_PAYLOAD_BYTES = 1 << 30;
+
+    /* A matrix of the message, either raw or encoded */
+    private static class Block {
+        private final byte slot;
+        private final INDArray matrix;
+        private final EncodedMatrix encoded;
+
+        private Block(byte slot, INDArray matrix, EncodedMatrix encoded) {
+            this.slot = slot;
+            this.matrix = matrix;
+            this.encoded = encoded;
+        }
+
+        private int rows() {
+            return matrix != null ? matrix.rows() : encoded.getRows();
+        }
+
+        private int columns() {
+            return matrix != null ? matrix.columns() : encoded.getColumns();
+        }
+    }
+
+    /**
+     * Checks if the message should travel as a binary frame
+     * @param message the message to send
+     * @return true if the message carries any matrix
+     */
+    public static boolean IsFrameMessage(CommunicationMessage message) {
+        return message.getCArray() != null ||
+                message.getPArray() != null ||
+                message.getXArray() != null ||
+                message.getYArray() != null ||
+                message.getEncodedXArray() != null ||
+                message.getEncodedYArray() != null;
+    }
+
+    /**
+     * Checks if the first bytes of a connection are the frame magic
+     * @param magic the first MAGIC_SIZE bytes of the connection
+     * @return true if a binary frame follows
+     */
+    public static boolean IsFrameMagic(byte[] magic) {
+        return magic.length == MAGIC_SIZE &&
+                ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt() == FRAME_MAGIC;
+    }
+
+    /**
+     * Writes the message as one frame, using a gathering write so the
+     * matrix payloads go to the socket straight from the matrix storage
+     * @param channel the channel to write to
+     * @param message the message to write
+     * @return the number of bytes written
+     */
+    public static long WriteMessage(GatheringByteChannel channel, CommunicationMessage message) throws IOException {
+        return WriteMessage(channel, message, EncodePayloads(message));
+    }
+
+    /**
+     * Writes the message as one frame with already encoded payloads.
+     * Only the header is built per call, so a broadcast pays the
+     * encoding of its matrices once no matter how many receivers it has
+     * @param channel the channel to write to
+     * @param message the message to write
+     * @param payloads the payloads returned by EncodePayloads for the same matrices
+     * @return the number of bytes written
+     */
+    public static long WriteMessage(GatheringByteChannel channel, CommunicationMessage message, ByteBuffer[] payloads) throws IOException {
+        List<Block> blocks = GetBlocks(message);
+
+        if (payloads.length != blocks.size()) {
+            throw new IOException("Expected " + blocks.size() + " payloads, got " + payloads.length);
+        }
+
+        /* Every write gets its own positions over the shared payloads */
+        ByteBuffer[] buffers = new ByteBuffer[payloads.length + 1];
+        for (int i = 0; i < payloads.length; i++) {
+            buffers[i + 1] = payloads[i].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        byte[] name = message.getServerName() == null ?
+                new byte[0] :
+                message.getServerName().getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer header = ByteBuffer
+                .allocate(HEADER_SIZE + name.length + blocks.size() * DESCRIPTOR_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(FRAME_MAGIC);
+        header.put(FRAME_VERSION);
+        header.put((byte) message.getType().getValue());
+        header.put((byte) blocks.size());
+        header.put((byte) 0);
+        header.putInt(message.getIteration());
+        header.putInt(message.getStartIndex());
+        header.putInt(message.getEndIndex());
+        header.putDouble(message.getExecutionTime());
+        header.putDouble(message.getUpdateTolerance());
+        header.putInt(name.length);
+        header.put(name);
+
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            header.put(block.slot);
+            header.put(block.matrix != null ? GetDataType(block.matrix) : 0);
+            header.put(block.matrix != null ? 0 : FLAG_ENCODED);
+            header.put((byte) 0);
+            header.putInt(block.rows());
+            header.putInt(block.columns());
+            header.putInt(buffers[i + 1].remaining());
+        }
+        header.flip();
+        buffers[0] = header;
+
+        return WriteFully(channel, buffers);
+    }
+
+    /**
+     * Encodes the matrices of the message to read only little endian
+     * buffers, which can be shared between any number of WriteMessage calls
+     * @param message the message with the matrices
+     * @return one buffer per matrix of the message
+     */
+    public static ByteBuffer[] EncodePayloads(CommunicationMessage message) {
+        List<Block> blocks = GetBlocks(message);
+
+        ByteBuffer[] payloads = new ByteBuffer[blocks.size()];
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            payloads[i] = block.matrix != null ?
+                    AsLittleEndianBuffer(block.matrix).asReadOnlyBuffer() :
+                    block.encoded.getPayload().asReadOnlyBuffer();
+        }
+        return payloads;
+    }
+
+    /**
+     * Reads a frame whose magic has already been consumed while sniffing
+     * the connection. The payloads are scattered straight into the
+     * storage of the newly created matrices
+     * @param channel the channel to read from
+     * @return the message of the frame
+     */
+    public static CommunicationMessage ReadMessage(ScatteringByteChannel channel) throws IOException {
+        return ReadMessage(channel, null);
+    }
+
+    /**
+     * Reads a frame whose magic has already been consumed while sniffing
+     * the connection. A raw X or Y slice lands in its rows of the matrix
+     * the target returns for it, scattered straight into them when the
+     * wire format matches the storage, the rest payloads into the storage
+     * of newly created matrices
+     * @param channel the channel to read from
+     * @param frameTarget gives the matrix that the slice belongs to, or null
+     * @return the message of the frame
+     */
+    public static CommunicationMessage ReadMessage(ScatteringByteChannel channel, IFrameTarget frameTarget) throws IOException {
+        ByteBuffer header = ByteBuffer
+                .allocate(HEADER_SIZE - MAGIC_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        ReadFully(channel, header);
+        header.flip();
+
+        byte version = header.get();
+        if (version != FRAME_VERSION) {
+            throw new IOException("Unsupported frame version: " + version);
+        }
+
+        CommunicationMessage message = new CommunicationMessage();
+        message.setType(MessageType.forValue(header.get()));
+        int blocks = header.get();
+        header.get();
+        message.setIteration(header.getInt());
+        message.setStartIndex(header.getInt());
+        message.setEndIndex(header.getInt());
+        message.setExecutionTime(header.getDouble());
+        message.setUpdateTolerance(header.getDouble());
+        int nameLength = header.getInt();
+
+        if (blocks < 0 || blocks > MAX_BLOCKS) {
+            throw new IOException("Corrupted frame of " + blocks + " blocks");
+        }
+        if (nameLength < 0 || nameLength > MAX_NAME_LENGTH) {
+            throw new IOException("Corrupted frame with a name of " + nameLength + " bytes");
+        }
+
+        ByteBuffer descriptors = ByteBuffer
+                .allocate(nameLength + blocks * DESCRIPTOR_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        ReadFully(channel, descriptors);
+        descriptors.flip();
+
+        byte[] name = new byte[nameLength];
+        descriptors.get(name);
+        if (nameLength > 0) {
+            message.setServerName(new String(name, StandardCharsets.UTF_8));
+        }
+
+        byte[] slots = new byte[blocks];
+        byte[] dataTypes = new byte[blocks];
+        byte[] flags = new byte[blocks];
+        int[][] shapes = new int[blocks][];
+        INDArray[] matrices = new INDArray[blocks];
+        boolean[] isInPlace = new boolean[blocks];
+        INDArray[] targets = new INDArray[blocks];
+        ByteBuffer[] payloads = new ByteBuffer[blocks];
+        long frameBytes = HEADER_SIZE + descriptors.capacity();
+        for (int i = 0; i < blocks; i++) {
+            slots[i] = descriptors.get();
+            dataTypes[i] = descriptors.get();
+            flags[i] = descriptors.get();
+            descriptors.get();
+            shapes[i] = new int[]{descriptors.getInt(), descriptors.getInt()};
+            int payloadBytes = descriptors.getInt();
+            CheckBlock(slots[i], dataTypes[i], (flags[i] & FLAG_ENCODED) != 0, shapes[i], payloadBytes);
+            frameBytes += payloadBytes;
+
+            /* Encoded payloads are decoded later, against the reference of the receiver */
+            if ((flags[i] & FLAG_ENCODED) != 0) {
+                payloads[i] = ByteBuffer.allocate(payloadBytes).order(ByteOrder.LITTLE_ENDIAN);
+                continue;
+            }
+
+            /* A target hands its rows over to this slice alone, so the slice lands there either way */
+            INDArray target = frameTarget != null && (slots[i] == SLOT_X || slots[i] == SLOT_Y) ?
+                    frameTarget.GetTargetMatrix(message, slots[i] == SLOT_X) :
+                    null;
+            if (target != null) {
+                if (!IsWithinTarget(target, message.getStartIndex(), shapes[i])) {
+                    throw new IOException("Corrupted frame block of " + shapes[i][0] + "x" + shapes[i][1] +
+                            " from row " + message.getStartIndex() + " of a " + target.rows() + "x" + target.columns() + " matrix");
+                }
+                message.setAssembledInPlace(true);
+            }
+
+            /* Read into the rows of the target when the wire format matches its storage */
+            if (target != null && IsTargetStorageFor(target, dataTypes[i])) {
+                payloads[i] = GetRowsBuffer(target, message.getStartIndex(), shapes[i][0]);
+                matrices[i] = target.get(
+                        NDArrayIndex.interval(message.getStartIndex(), message.getStartIndex() + shapes[i][0]),
+                        NDArrayIndex.all());
+                isInPlace[i] = true;
+
+                if (payloads[i].remaining() != payloadBytes) {
+                    throw new IOException("Corrupted frame block of " + payloadBytes + " bytes");
+                }
+                continue;
+            }
+            targets[i] = target;
+
+            matrices[i] = Nd4j.create(shapes[i][0], shapes[i][1], 'c');
+
+            /* Read in place when the wire format matches the local storage */
+            payloads[i] = dataTypes[i] == GetDataType(matrices[i]) && IsNativeLittleEndian() ?
+                    matrices[i].data().asNio().order(ByteOrder.LITTLE_ENDIAN) :
+                    ByteBuffer.allocate(payloadBytes).order(ByteOrder.LITTLE_ENDIAN);
+
+            if (payloads[i].remaining() != payloadBytes) {
+                throw new IOException("Corrupted frame block of " + payloadBytes + " bytes");
+            }
+        }
+
+        ReadFully(channel, payloads);
+        message.setFrameBytes(frameBytes);
+
+        for (int i = 0; i < blocks; i++) {
+            payloads[i].flip();
+
+            if (matrices[i] == null) {
+                SetBlock(message, slots[i], null, new EncodedMatrix(shapes[i][0], shapes[i][1], payloads[i]));
+                continue;
+            }
+
+            /* Convert the payloads that could not be read in place */
+            if (payloads[i].hasArray() && !isInPlace[i]) {
+                DataBuffer data = matrices[i].data();
+                for (int e = 0; e < data.length(); e++) {
+                    data.put(e, dataTypes[i] == DTYPE_DOUBLE ?
+                            payloads[i].getDouble() :
+                            payloads[i].getFloat());
+                }
+            }
+
+            /* The slice was read aside, it is copied into the rows of its target */
+            if (targets[i] != null) {
+                INDArrayIndex[] rows = {
+                        NDArrayIndex.interval(message.getStartIndex(), message.getStartIndex() + shapes[i][0]),
+                        NDArrayIndex.all()};
+                targets[i].put(rows, matrices[i]);
+                matrices[i] = targets[i].get(rows);
+            }
+
+            SetBlock(message, slots[i], matrices[i], null);
+        }
+
+        return message;
+    }
+
+    /**
+     * Reads from the channel until the buffers are full
+     * @param channel the channel to read from
+     * @param buffers the buffers to fill
+     */
+    public static void ReadFully(ScatteringByteChannel channel, ByteBuffer... buffers) throws IOException {
+        while (HasRemaining(buffers)) {
+            if (channel.read(buffers) < 0) {
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+        }
+    }
+
+    /**
+     * Reads from the channel until the buffer is full
+     * @param channel the channel to read from
+     * @param buffer the buffer to fill
+     */
+    public static void ReadFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+        }
+    }
+
+    /**
+     * Writes all the buffers to the channel
+     * @param channel the channel to write to
+     * @param buffers the buffers to write
+     * @return the number of bytes written
+     */
+    public static long WriteFully(GatheringByteChannel channel, ByteBuffer... buffers) throws IOException {
+        long written = 0;
+        while (HasRemaining(buffers)) {
+            written += channel.write(buffers);
+        }
+        return written;
+    }
+
+    /**
+     * Returns a little endian view of the matrix storage. Views and
+     * column major matrices are copied to a heap buffer, because the
+     * storage of a temporary duplicate could be freed while still in use
+     * @param matrix the matrix
+     * @return a buffer positioned at the first element of the matrix
+     */
+    private static ByteBuffer AsLittleEndianBuffer(INDArray matrix) {
+        boolean isTemporary = matrix.isView() || matrix.ordering() != 'c';
+        if (isTemporary) {
+            matrix = matrix.dup('c');
+        }
+
+        if (IsNativeLittleEndian()) {
+            ByteBuffer storage = matrix.data().asNio().duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            if (!isTemporary) return storage;
+
+            ByteBuffer copy = ByteBuffer.allocate(storage.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+            copy.put(storage);
+            copy.flip();
+            return copy;
+        }
+
+        DataBuffer data = matrix.data();
+        ByteBuffer buffer = ByteBuffer
+                .allocate((int) (data.length() * data.getElementSize()))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int e = 0; e < data.length(); e++) {
+            if (data.dataType() == DataBuffer.Type.DOUBLE) {
+                buffer.putDouble(data.getDouble(e));
+            } else {
+                buffer.putFloat(data.getFloat(e));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Checks a block descriptor before anything is allocated or read for it.
+     * A raw block must carry exactly the elements of its shape
+     * @throws IOException if the descriptor is corrupted
+     */
+    private static void CheckBlock(byte slot, byte dataType, boolean isEncoded, int[] shape, int payloadBytes) throws IOException {
+        if (slot < SLOT_C || slot > SLOT_Y_GRAM ||
+                (dataType != DTYPE_FLOAT && dataType != DTYPE_DOUBLE) ||
+                shape[0] < 0 || shape[1] < 0 ||
+                payloadBytes < 0 || payloadBytes > MAX_PAYLOAD_BYTES) {
+            throw new IOException("Corrupted frame block of slot " + slot + ", shape " + shape[0] + "x" + shape[1] +
+                    " and " + payloadBytes + " bytes");
+        }
+
+        long expectedBytes = (long) shape[0] * shape[1] * (dataType == DTYPE_DOUBLE ? Double.BYTES : Float.BYTES);
+        if (!isEncoded && expectedBytes != payloadBytes) {
+            throw new IOException("Corrupted frame block of shape " + shape[0] + "x" + shape[1] +
+                    " and " + payloadBytes + " bytes");
+        }
+    }
+
+    /**
+     * Checks if a slice fits in the rows of the target
+     */
+    private static boolean IsWithinTarget(INDArray target, int startIndex, int[] shape) {
+        return target.columns() == shape[1] &&
+                startIndex >= 0 &&
+                startIndex + shape[0] <= target.rows();
+    }
+
+    /**
+     * Checks if a slice can be read straight into the storage of the target
+     */
+    private static boolean IsTargetStorageFor(INDArray target, byte dataType) {
+        return IsNativeLittleEndian() &&
+                !target.isView() &&
+                target.ordering() == 'c' &&
+                GetDataType(target) == dataType;
+    }
+
+    /**
+     * Returns a little endian buffer over the storage of some rows
+     * of a row major matrix
+     */
+    private static ByteBuffer GetRowsBuffer(INDArray matrix, int startIndex, int rows) {
+        int rowBytes = matrix.columns() * matrix.data().getElementSize();
+
+        ByteBuffer storage = matrix.data().asNio().duplicate();
+        storage.position(startIndex * rowBytes);
+        storage.limit((startIndex + rows) * rowBytes);
+        return storage.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static List<Block> GetBlocks(CommunicationMessage message) {
+        List<Block> blocks = new ArrayList<>();
+        AddBlock(blocks, SLOT_C, message.getCArray(), null);
+        AddBlock(blocks, SLOT_P, message.getPArray(), null);
+        AddBlock(blocks, SLOT_X, message.getXArray(), message.getEncodedXArray());
+        AddBlock(blocks, SLOT_Y, message.getYArray(), message.getEncodedYArray());
+        AddBlock(blocks, SLOT_X_GRAM, message.getXGramArray(), null);
+        AddBlock(blocks, SLOT_Y_GRAM, message.getYGramArray(), null);
+        return blocks;
+    }
+
+    private static void AddBlock(List<Block> blocks, byte slot, INDArray matrix, EncodedMatrix encoded) {
+        if (matrix != null) {
+            blocks.add(new Block(slot, matrix, null));
+        } else if (encoded != null) {
+            blocks.add(new Block(slot, null, encoded));
+        }
+    }
+
+    private static void SetBlock(CommunicationMessage message, byte slot,
+                                 INDArray matrix, EncodedMatrix encoded) throws IOException {
+        switch (slot) {
+            case SLOT_C: message.setCArray(matrix); break;
+            case SLOT_P: message.setPArray(matrix); break;
+            case SLOT_X: message.setXArray(matrix); message.setEncodedXArray(encoded); break;
+            case SLOT_Y: message.setYArray(matrix); message.setEncodedYArray(encoded); break;
+            case SLOT_X_GRAM: message.setXGramArray(matrix); break;
+            case SLOT_Y_GRAM: message.setYGramArray(matrix); break;
+            default: throw new IOException("Unknown frame slot: " + slot);
+        }
+    }
+
+    private static byte GetDataType(INDArray matrix) {
+        return matrix.data().dataType() == DataBuffer.Type.DOUBLE ? DTYPE_DOUBLE : DTYPE_FLOAT;
+    }
+
+    private static boolean IsNativeLittleEndian() {
+        return ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    }
+
+    private static boolean HasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) return true;
+        }
+        return false;
+    }
+}
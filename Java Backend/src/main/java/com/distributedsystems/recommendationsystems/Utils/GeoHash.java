@@ -0,0 +1,98 @@
+package com.distributedsystems.recommendationsystems.Utils;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public class GeoHash {
+    private final static String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+    private final static double KM_PER_DEGREE = 111.32;
+
+    /**
+     * Encodes a position to the geohash of the cell that contains it. The
+     * bits alternate between the longitude and the latitude, five bits
+     * make a character, so a longer hash is a smaller cell inside the shorter one
+     * @param latitude the latitude
+     * @param longitude the longitude
+     * @param precision the characters of the hash
+     * @return the geohash
+     */
+    public static String Encode(double latitude, double longitude, int precision){
+        double[] latitudeRange = {-90, 90};
+        double[] longitudeRange = {-180, 180};
+
+        StringBuilder hash = new StringBuilder(precision);
+        boolean isLongitude = true;
+        int bits = 0;
+        int character = 0;
+        while (hash.length() < precision) {
+            double[] range = isLongitude ? longitudeRange : latitudeRange;
+            double value = isLongitude ? longitude : latitude;
+            double middle = (range[0] + range[1]) / 2;
+
+            character <<= 1;
+            if (value >= middle) {
+                character |= 1;
+                range[0] = middle;
+            } else {
+                range[1] = middle;
+            }
+
+            isLongitude = !isLongitude;
+            if (++bits == 5) {
+                hash.append(BASE32.charAt(character));
+                bits = 0;
+                character = 0;
+            }
+        }
+
+        return hash.toString();
+    }
+
+    /**
+     * The cell of a position and the eight cells around it, every position
+     * closer to the given one than the size of a cell is inside them
+     * @param latitude the latitude
+     * @param longitude the longitude
+     * @param precision the characters of the hash
+     * @return the geohashes of the cells
+     */
+    public static Set<String> GetNeighbourhood(double latitude, double longitude, int precision){
+        double cellHeight = GetCellHeight(precision);
+        double cellWidth = GetCellWidth(precision);
+
+        Set<String> cells = new LinkedHashSet<>();
+        for (int row = -1; row <= 1; row++) {
+            double cellLatitude = Math.max(-90, Math.min(90, latitude + row * cellHeight));
+            for (int column = -1; column <= 1; column++) {
+                /* Wrap the longitude around the antimeridian */
+                double cellLongitude = longitude + column * cellWidth;
+                if (cellLongitude < -180) cellLongitude += 360;
+                if (cellLongitude >= 180) cellLongitude -= 360;
+
+                cells.add(Encode(cellLatitude, cellLongitude, precision));
+            }
+        }
+
+        return cells;
+    }
+
+    /**
+     * @param latitude the latitude of the cell
+     * @param precision the characters of the hash
+     * @return the shorter side of a cell in km, the width shrinks away from the equator
+     */
+    public static double GetCellSizeKm(double latitude, int precision){
+        double height = GetCellHeight(precision) * KM_PER_DEGREE;
+        double width = GetCellWidth(precision) * KM_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+
+        return Math.min(height, width);
+    }
+
+    private static double GetCellHeight(int precision){
+        return 180 / Math.pow(2, (5 * precision) / 2);
+    }
+
+    private static double GetCellWidth(int precision){
+        return 360 / Math.pow(2, (5 * precision + 1) / 2);
+    }
+}
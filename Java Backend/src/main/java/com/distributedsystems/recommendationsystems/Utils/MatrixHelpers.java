@@ -2,30 +2,152 @@ package com.distributedsystems.recommendationsystems.Utils;
 
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.nd4j.linalg.inverse.InvertMatrix;
 
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
 
 public class MatrixHelpers {
 
+    /* The confidence of the check ins is C = 1 + ALPHA * R, for the master and the workers alike */
+    public final static double ALPHA = 40;
+
     /**
      * Generates a random Matrix
      * @param R R DataSet Matrix
      * @param K K Dimension
      * @param isY If the generated matrix is the Y or the X
+     * @param seed the seed of the random values, the same seed gives the same matrix
      * @return the random matrix
      */
-    public static INDArray GenerateRandomMatrix(INDArray R, int K, boolean isY){
-        /* Create the matrix */
-        INDArray matrix = Nd4j.zeros(isY ? R.columns() : R.rows(), K);
-
-        /* Fill it with random values between zero and 1 */
-        for (int u = 0; u < matrix.rows(); u++) {
-            for (int k = 0; k < matrix.columns(); k++) {
-                /* Enter a random value between 0 and 1 */
-                matrix.putScalar(u, k, ThreadLocalRandom.current().nextDouble(0, 1));
-            }
+    public static INDArray GenerateRandomMatrix(INDArray R, int K, boolean isY, long seed){
+        /* X and Y must not share their values */
+        return isY ?
+                GenerateRandomMatrix(R.columns(), K, ~seed) :
+                GenerateRandomMatrix(R.rows(), K, seed);
+    }
+
+    /**
+     * Generates a matrix of random values between zero and 1. The rows are
+     * filled in parallel into a plain array, which is copied to the matrix
+     * at once, and every row has its own generator, so the values do not
+     * depend on the threads that filled them
+     * @param rows the number of the rows
+     * @param K K Dimension
+     * @param seed the seed of the random values, the same seed gives the same matrix
+     * @return the random matrix
+     */
+    public static INDArray GenerateRandomMatrix(int rows, int K, long seed){
+        /* The seeds of the rows come from one generator, in order */
+        SplittableRandom seeds = new SplittableRandom(seed);
+        long[] rowSeeds = new long[rows];
+        for (int row = 0; row < rows; row++) {
+            rowSeeds[row] = seeds.nextLong();
         }
 
+        double[] values = new double[rows * K];
+        IntStream.range(0, rows).parallel().forEach(row -> {
+            SplittableRandom random = new SplittableRandom(rowSeeds[row]);
+            for (int k = 0; k < K; k++) {
+                values[row * K + k] = random.nextDouble();
+            }
+        });
+
+        return Nd4j.create(values, new int[]{rows, K}, 'c');
+    }
+
+    /**
+     * Fits the factors of a previous training to a grown dataset. The
+     * rows and factors that already existed keep their values, the rest,
+     * like the rows of new users or POIs appended to the dataset, are random
+     * @param saved the factors of the previous training
+     * @param R R DataSet Matrix
+     * @param K K Dimension
+     * @param isY If the matrix is the Y or the X
+     * @param seed the seed of the random values
+     * @return the matrix of the new shape
+     */
+    public static INDArray ExtendRandomMatrix(INDArray saved, INDArray R, int K, boolean isY, long seed){
+        INDArray matrix = GenerateRandomMatrix(R, K, isY, seed);
+
+        int savedRows = Math.min(saved.rows(), matrix.rows());
+        int savedColumns = Math.min(saved.columns(), K);
+        matrix.get(NDArrayIndex.interval(0, savedRows), NDArrayIndex.interval(0, savedColumns))
+                .assign(saved.get(NDArrayIndex.interval(0, savedRows), NDArrayIndex.interval(0, savedColumns)));
+
         return matrix;
     }
+
+    /**
+     * Solves the row of a user or a POI against the fixed opposite factor
+     * matrix, only over the interactions of the row, since Cu - I and Pu
+     * are zero everywhere else: (Y.TY + Yu.T(cu - 1)Yu + λI)^-1 Yu.Tcu
+     * @param matrix the fixed factor matrix
+     * @param interactions the rows of the matrix the row interacted with
+     * @param confidences the confidence of every interaction
+     * @param gram the gram of the fixed factor matrix
+     * @param lambda the regularization
+     * @return the new row
+     */
+    public static INDArray SolveFactorRow(INDArray matrix, int[] interactions, double[] confidences,
+                                          INDArray gram, double lambda){
+        /* Without interactions Pu is zero, and so is the row */
+        if (interactions.length == 0) return Nd4j.zeros(1, matrix.columns());
+
+        INDArray Yu = matrix.getRows(interactions);
+        INDArray cu = Nd4j.create(confidences);
+
+        /* Y.TY + Yu.T(cu - 1)Yu + λI */
+        INDArray result = Yu.transpose().mmul(Yu.mulColumnVector(cu.sub(1).transpose()));
+        result.addi(gram);
+        result.addi(Nd4j.eye(result.rows()).mul(lambda));
+
+        /* invert the matrix */
+        result = InvertMatrix.invert(result, true);
+
+        /* Pu is one on every interaction, so PuCuY is cu.TYu */
+        return cu.mmul(Yu).mmul(result);
+    }
+
+    /**
+     * Solves the same row as SolveFactorRow, from the inverse of the
+     * regularized gram, which does not depend on the row and so can be
+     * calculated once. The row only adds Yu.T(cu - 1)Yu to it, so the
+     * Woodbury identity needs the inverse of an interactions x interactions
+     * matrix instead of a K x K one, which is cheap for the few interactions
+     * of a row: (G + Yu.TDYu)^-1 = G^-1 - G^-1Yu.T(I + DYuG^-1Yu.T)^-1DYuG^-1
+     * @param matrix the fixed factor matrix
+     * @param interactions the rows of the matrix the row interacted with
+     * @param confidences the confidence of every interaction
+     * @param gramInverse the inverse of the gram of the fixed factor matrix plus λI
+     * @return the new row
+     */
+    public static INDArray SolveFactorRowFromInverse(INDArray matrix, int[] interactions, double[] confidences,
+                                                     INDArray gramInverse){
+        /* Without interactions Pu is zero, and so is the row */
+        if (interactions.length == 0) return Nd4j.zeros(1, matrix.columns());
+
+        INDArray Yu = matrix.getRows(interactions);
+        INDArray cu = Nd4j.create(confidences);
+        INDArray d = cu.sub(1).transpose();
+
+        /* G^-1Yu.T is the transpose of YuG^-1 since G is symmetric */
+        INDArray YuG = Yu.mmul(gramInverse);
+        INDArray small = YuG.mmul(Yu.transpose()).mulColumnVector(d);
+        small.addi(Nd4j.eye(small.rows()));
+
+        /* Pu is one on every interaction, so PuCuY is cu.TYu */
+        /* nd4j does not take a 1 x 1 matrix for a square one */
+        INDArray smallInverse = small.length() == 1 ?
+                Nd4j.create(new double[]{1 / small.getDouble(0)}, new int[]{1, 1}) :
+                InvertMatrix.invert(small, true);
+
+        INDArray bG = cu.mmul(YuG);
+        INDArray correction = bG.mmul(Yu.transpose())
+                .mmul(smallInverse)
+                .mmul(YuG.mulColumnVector(d));
+
+        return bG.subi(correction);
+    }
 }
@@ -6,14 +6,16 @@ import com.distributedsystems.recommendationsystems.Models.Poi;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
+import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 public class ParserUtils {
+    private final static int BINARY_DATASET_MAGIC = 0x52534453;
+    private final static int BINARY_DATASET_VERSION = 1;
 
     /**
      * Calculates the elapsed time from a start time
@@ -65,6 +67,102 @@ public class ParserUtils {
         return matrix;
     }
 
+    /**
+     * Loads a dataSet of the binary format, which WriteBinaryDataSet writes
+     * @param dataSet the path to the dataSet
+     * @return the dataSet matrix, null if the file is not a binary dataSet
+     */
+    public static INDArray LoadBinaryDataSet(String dataSet){
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataSet)))) {
+            if (!ReadBinaryHeader(in)) return null;
+            in.readLong();
+
+            int rows = in.readInt();
+            int columns = in.readInt();
+            int entries = in.readInt();
+
+            /* Filled as a plain array, the matrix is created at once */
+            double[] values = new double[rows * columns];
+            for (int entry = 0; entry < entries; entry++) {
+                int row = in.readInt();
+                int column = in.readInt();
+                values[row * columns + column] = in.readInt();
+            }
+
+            return Nd4j.create(values, new int[]{rows, columns}, 'c');
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads the last segment of the interaction log the binary dataSet contains
+     * @param dataSet the path to the dataSet
+     * @return the segment, zero if the file does not exist or is not a binary dataSet
+     */
+    public static long ReadCompactedSegment(String dataSet){
+        if (!Files.exists(Paths.get(dataSet))) return 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataSet)))) {
+            return ReadBinaryHeader(in) ? in.readLong() : 0;
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * Writes a dataSet in the binary format: a header with the last segment
+     * of the interaction log it contains and the dimensions, then the non zero
+     * cells as row, column and value, sorted by row and column. The file is
+     * written aside and moved over the old one, a reader never sees half of it
+     * @param dataSet the path to the dataSet
+     * @param matrix the dataSet matrix
+     * @param compactedSegment the last segment of the interaction log the matrix contains
+     */
+    public static void WriteBinaryDataSet(String dataSet, INDArray matrix, long compactedSegment) throws IOException {
+        int rows = matrix.rows();
+        int columns = matrix.columns();
+        double[] values = matrix.dup('c').data().asDouble();
+        int entries = (int) Arrays.stream(values).filter(value -> value != 0).count();
+
+        Path path = Paths.get(dataSet);
+        Path temporaryPath = Paths.get(dataSet + ".tmp");
+
+        try (FileOutputStream file = new FileOutputStream(temporaryPath.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(BINARY_DATASET_MAGIC);
+            out.writeInt(BINARY_DATASET_VERSION);
+            out.writeLong(compactedSegment);
+            out.writeInt(rows);
+            out.writeInt(columns);
+            out.writeInt(entries);
+
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    double value = values[row * columns + column];
+                    if (value == 0) continue;
+
+                    out.writeInt(row);
+                    out.writeInt(column);
+                    out.writeInt((int) value);
+                }
+            }
+
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static boolean ReadBinaryHeader(DataInputStream in) throws IOException {
+        return in.readInt() == BINARY_DATASET_MAGIC && in.readInt() == BINARY_DATASET_VERSION;
+    }
+
     public static Map<String, Poi> loadPoisFromJson() {
         try{
             return new Gson().fromJson(